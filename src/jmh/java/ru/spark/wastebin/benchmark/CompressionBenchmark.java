@@ -0,0 +1,73 @@
+package ru.spark.wastebin.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.spark.wastebin.util.CompressionEngine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Compression and decompression throughput across paste sizes and content kinds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"1024", "65536", "1048576", "8388608"})
+    public int size;
+
+    @Param({"text", "json", "random"})
+    public String kind;
+
+    /**
+     * Compress using parallel blocks above this many KB, or 0 to always compress serially
+     */
+    @Param({"0", "1024"})
+    public int parallelThresholdKb;
+
+    private CompressionEngine engine;
+    private byte[] raw;
+    private ByteBuffer compressed;
+
+    @Setup
+    public void setup() {
+        ExecutorService executor = this.parallelThresholdKb > 0 ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : null;
+        this.engine = new CompressionEngine(Deflater.DEFAULT_COMPRESSION, this.parallelThresholdKb * 1024, 256 * 1024, executor);
+        this.raw = Payloads.generate(this.kind, this.size);
+        this.compressed = this.engine.compress(this.raw);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.engine.close();
+    }
+
+    @Benchmark
+    public ByteBuffer compress() {
+        return this.engine.compress(this.raw);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return this.engine.decompress(this.compressed.duplicate());
+    }
+}
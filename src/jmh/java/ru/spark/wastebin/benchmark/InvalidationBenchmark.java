@@ -0,0 +1,89 @@
+package ru.spark.wastebin.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.spark.wastebin.content.Content;
+import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.content.storage.ContentStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single invalidation run over a large store, where a fraction of the content has expired.
+ *
+ * <p>Each iteration populates a fresh store, so this is slow to set up - narrow the
+ * parameters with {@code -p} when iterating on a change.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class InvalidationBenchmark {
+
+    @Param({"file", "segment"})
+    public String engine;
+
+    @Param({"100000", "1000000"})
+    public int contentCount;
+
+    /**
+     * The fraction of the content which has expired
+     */
+    @Param({"0.1", "1"})
+    public double expiredFraction;
+
+    private Path directory;
+    private ScheduledExecutorService executor;
+    private ContentStorageHandler handler;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("wastebin-bench");
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+
+        long now = System.currentTimeMillis();
+        long expired = now - TimeUnit.MINUTES.toMillis(1);
+        long live = now + TimeUnit.DAYS.toMillis(1);
+        byte[] payload = Payloads.generate("json", 512);
+
+        // populate the store directly, then let the handler pick it up with a startup scan
+        try (ContentStorage storage = Storages.create(this.engine, this.directory)) {
+            int expiredCount = (int) (this.contentCount * this.expiredFraction);
+            for (int i = 0; i < this.contentCount; i++) {
+                storage.save(new Content("key" + i, "application/json", i < expiredCount ? expired : live, now, false, null, payload));
+            }
+        }
+        this.handler = new ContentStorageHandler(this.executor, Storages.create(this.engine, this.directory), 0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        this.handler.close();
+        this.executor.shutdown();
+        Storages.delete(this.directory);
+    }
+
+    @Benchmark
+    public long runInvalidation() {
+        this.handler.runInvalidation();
+        return this.handler.getLastExpiredBatchSize();
+    }
+}
@@ -0,0 +1,406 @@
+package ru.spark.wastebin.benchmark;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import ru.spark.wastebin.Wastebin;
+import ru.spark.wastebin.util.Configuration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Drives an embedded wastebin instance over loopback with a configurable mix of requests,
+ * and reports throughput and latency percentiles for each kind of request.
+ *
+ * <p>Options are given as {@code key=value} arguments. Options the generator doesn't
+ * recognise are passed through as wastebin config, e.g. {@code corePoolSize=32} or
+ * {@code cacheMaxSizeMb=500}.</p>
+ *
+ * <pre>
+ * mvn -P benchmarks compile exec:java -Dexec.mainClass=ru.spark.wastebin.benchmark.LoadGenerator \
+ *     -Dexec.args="durationSeconds=60 clients=64 postSizes=1024,65536 corePoolSize=32"
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("durationSeconds", "30");
+        DEFAULTS.put("warmupSeconds", "5");
+        // concurrent client connections
+        DEFAULTS.put("clients", "16");
+        // pastes uploaded before the run, so reads have something to hit
+        DEFAULTS.put("preload", "1000");
+        // relative weights of each request kind
+        DEFAULTS.put("postWeight", "10");
+        DEFAULTS.put("getWeight", "85");
+        DEFAULTS.put("putWeight", "5");
+        // the fraction of reads for keys which don't exist
+        DEFAULTS.put("missRatio", "0.1");
+        // the fraction of reads from clients which accept gzip
+        DEFAULTS.put("gzipRatio", "0.8");
+        // the fraction of uploads which allow modification
+        DEFAULTS.put("modifiableRatio", "0.5");
+        // upload sizes in bytes, picked from at random
+        DEFAULTS.put("postSizes", "1024,16384,262144");
+        // the kind of payload: text, json or random
+        DEFAULTS.put("payloadKind", "json");
+    }
+
+    private enum Op {
+        POST, GET_HIT, GET_MISS, PUT
+    }
+
+    private final String baseUrl;
+    private final int clients;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int preload;
+    private final int postWeight;
+    private final int getWeight;
+    private final int putWeight;
+    private final double missRatio;
+    private final double gzipRatio;
+    private final double modifiableRatio;
+    private final byte[][] payloads;
+
+    private final KeyPool keys = new KeyPool();
+    private final KeyPool modifiableKeys = new KeyPool();
+
+    private LoadGenerator(String baseUrl, Map<String, String> options) {
+        this.baseUrl = baseUrl;
+        this.clients = Integer.parseInt(options.get("clients"));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("durationSeconds")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmupSeconds")));
+        this.preload = Integer.parseInt(options.get("preload"));
+        this.postWeight = Integer.parseInt(options.get("postWeight"));
+        this.getWeight = Integer.parseInt(options.get("getWeight"));
+        this.putWeight = Integer.parseInt(options.get("putWeight"));
+        this.missRatio = Double.parseDouble(options.get("missRatio"));
+        this.gzipRatio = Double.parseDouble(options.get("gzipRatio"));
+        this.modifiableRatio = Double.parseDouble(options.get("modifiableRatio"));
+
+        String[] sizes = options.get("postSizes").split(",");
+        this.payloads = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            this.payloads[i] = Payloads.generate(options.get("payloadKind"), Integer.parseInt(sizes[i].trim()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        JsonObject config = new JsonObject();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value but got: " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            if (DEFAULTS.containsKey(key)) {
+                options.put(key, value);
+            } else {
+                config.add(key, JsonParser.parseString(value.matches("-?[0-9.]+|true|false|\\{.*}") ? value : "\"" + value + "\""));
+            }
+        }
+
+        Path contentPath = Files.createTempDirectory("wastebin-load");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        config.addProperty("host", "127.0.0.1");
+        config.addProperty("port", port);
+        config.addProperty("contentPath", contentPath.toString());
+        if (!config.has("accessLog")) {
+            config.addProperty("accessLog", "none");
+        }
+        // each run starts from an empty store, so there's nothing to warm
+        if (!config.has("hotKeysLimit")) {
+            config.addProperty("hotKeysLimit", 0);
+        }
+        // every request comes from loopback, so effectively disable the rate limits
+        for (String limit : new String[]{"post", "update", "read"}) {
+            if (!config.has(limit + "RateLimit")) {
+                config.addProperty(limit + "RateLimitPeriodMins", 0);
+                config.addProperty(limit + "RateLimit", 16000);
+            }
+        }
+
+        System.out.println("Starting wastebin on port " + port + " with config " + config);
+        Wastebin wastebin = new Wastebin(new Configuration(config));
+        try {
+            new LoadGenerator("http://127.0.0.1:" + port, options).run();
+        } finally {
+            wastebin.close();
+            Storages.delete(contentPath);
+        }
+
+        // rapidoid's server threads outlive halt(), so they'd keep the jvm alive
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Preloading " + this.preload + " pastes...");
+        for (int i = 0; i < this.preload; i++) {
+            post();
+        }
+
+        long start = System.nanoTime();
+        long measureStart = start + this.warmupNanos;
+        long end = measureStart + this.durationNanos;
+
+        System.out.println("Running " + this.clients + " clients for " + TimeUnit.NANOSECONDS.toSeconds(this.warmupNanos) + "s warmup + " + TimeUnit.NANOSECONDS.toSeconds(this.durationNanos) + "s...");
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < this.clients; i++) {
+            Client client = new Client(measureStart, end);
+            client.setName("load-client-" + i);
+            client.start();
+            clients.add(client);
+        }
+        for (Client client : clients) {
+            client.join();
+        }
+
+        report(clients);
+    }
+
+    private void report(List<Client> clients) {
+        double seconds = this.durationNanos / 1e9;
+        long totalCount = 0;
+
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %8s %12s %10s %10s %10s %10s", "op", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for (Op op : Op.values()) {
+            long errors = 0;
+            int count = 0;
+            for (Client client : clients) {
+                errors += client.errors[op.ordinal()];
+                count += client.samples[op.ordinal()].size;
+            }
+            long[] merged = new long[count];
+            int pos = 0;
+            for (Client client : clients) {
+                Samples samples = client.samples[op.ordinal()];
+                System.arraycopy(samples.values, 0, merged, pos, samples.size);
+                pos += samples.size;
+            }
+            Arrays.sort(merged);
+            totalCount += count;
+
+            System.out.println(String.format("%-10s %10d %8d %12.1f %10.3f %10.3f %10.3f %10.3f",
+                    op.name().toLowerCase(), count, errors, count / seconds,
+                    percentile(merged, 0.5), percentile(merged, 0.99), percentile(merged, 0.999),
+                    merged.length == 0 ? 0 : merged[merged.length - 1] / 1e6));
+        }
+        System.out.println(String.format("%-10s %10d %8s %12.1f", "total", totalCount, "", totalCount / seconds));
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private Op pickOp(ThreadLocalRandom random) {
+        int r = random.nextInt(this.postWeight + this.getWeight + this.putWeight);
+        if (r < this.postWeight) {
+            return Op.POST;
+        }
+        if (r < this.postWeight + this.getWeight) {
+            return random.nextDouble() < this.missRatio ? Op.GET_MISS : Op.GET_HIT;
+        }
+        return Op.PUT;
+    }
+
+    private boolean execute(Op op) throws IOException {
+        switch (op) {
+            case POST:
+                return post();
+            case GET_HIT:
+                String key = this.keys.random();
+                return key != null && get(key, 200);
+            case GET_MISS:
+                return get("missing" + ThreadLocalRandom.current().nextInt(1_000_000), 404);
+            case PUT:
+                return put();
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private boolean post() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean modifiable = random.nextDouble() < this.modifiableRatio;
+        try {
+            HttpURLConnection conn = open("/post", "POST");
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setRequestProperty("Allow-Modification", Boolean.toString(modifiable));
+            writeBody(conn, this.payloads[random.nextInt(this.payloads.length)]);
+
+            int code = conn.getResponseCode();
+            String key = conn.getHeaderField("Location");
+            String authKey = conn.getHeaderField("Modification-Key");
+            drain(conn);
+            if (code != 201 || key == null) {
+                return false;
+            }
+
+            this.keys.add(key);
+            if (modifiable && authKey != null) {
+                this.modifiableKeys.add(key + ":" + authKey);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean get(String key, int expectedCode) throws IOException {
+        HttpURLConnection conn = open("/" + key, "GET");
+        conn.setRequestProperty("Accept-Encoding", ThreadLocalRandom.current().nextDouble() < this.gzipRatio ? "gzip" : "identity");
+        int code = conn.getResponseCode();
+        drain(conn);
+        return code == expectedCode;
+    }
+
+    private boolean put() throws IOException {
+        String entry = this.modifiableKeys.random();
+        if (entry == null) {
+            return false;
+        }
+        int sep = entry.indexOf(':');
+
+        HttpURLConnection conn = open("/" + entry.substring(0, sep), "PUT");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("Modification-Key", entry.substring(sep + 1));
+        writeBody(conn, this.payloads[ThreadLocalRandom.current().nextInt(this.payloads.length)]);
+        int code = conn.getResponseCode();
+        drain(conn);
+        return code == 200;
+    }
+
+    private HttpURLConnection open(String path, String method) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(this.baseUrl + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(10_000);
+        conn.setReadTimeout(30_000);
+        return conn;
+    }
+
+    private static void writeBody(HttpURLConnection conn, byte[] body) throws IOException {
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+    }
+
+    // reads the whole response, so the connection can be reused
+    private static void drain(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in == null) {
+            return;
+        }
+        try (InputStream stream = in) {
+            byte[] buf = new byte[8192];
+            while (stream.read(buf) != -1) {
+                // discard
+            }
+        }
+    }
+
+    private final class Client extends Thread {
+        private final long measureStart;
+        private final long end;
+        private final Samples[] samples = new Samples[Op.values().length];
+        private final long[] errors = new long[Op.values().length];
+
+        Client(long measureStart, long end) {
+            this.measureStart = measureStart;
+            this.end = end;
+            for (int i = 0; i < this.samples.length; i++) {
+                this.samples[i] = new Samples();
+            }
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long start;
+            while ((start = System.nanoTime()) < this.end) {
+                Op op = pickOp(random);
+                boolean ok;
+                try {
+                    ok = execute(op);
+                } catch (IOException e) {
+                    ok = false;
+                }
+                long elapsed = System.nanoTime() - start;
+
+                if (start >= this.measureStart) {
+                    if (ok) {
+                        this.samples[op.ordinal()].add(elapsed);
+                    } else {
+                        this.errors[op.ordinal()]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A growable array of latency samples, in nanoseconds
+     */
+    private static final class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+    }
+
+    /**
+     * A bounded pool of keys to pick from at random
+     */
+    private static final class KeyPool {
+        private static final int CAPACITY = 1 << 16;
+
+        private final AtomicReferenceArray<String> keys = new AtomicReferenceArray<>(CAPACITY);
+        private final AtomicLong count = new AtomicLong();
+
+        void add(String key) {
+            this.keys.set((int) (this.count.getAndIncrement() & (CAPACITY - 1)), key);
+        }
+
+        String random() {
+            long count = Math.min(this.count.get(), CAPACITY);
+            if (count == 0) {
+                return null;
+            }
+            return this.keys.get(ThreadLocalRandom.current().nextInt((int) count));
+        }
+    }
+}
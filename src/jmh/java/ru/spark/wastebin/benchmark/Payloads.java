@@ -0,0 +1,70 @@
+package ru.spark.wastebin.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates deterministic paste payloads of different kinds for benchmarks.
+ */
+final class Payloads {
+
+    private static final String[] WORDS = {
+            "the", "server", "player", "world", "chunk", "tick", "entity", "plugin", "thread", "event",
+            "at", "java", "lang", "invoke", "handler", "cache", "load", "save", "config", "null"
+    };
+
+    private Payloads() {
+    }
+
+    /**
+     * Generates a payload.
+     *
+     * @param kind one of "text", "json" or "random"
+     * @param size the payload size in bytes
+     * @return the payload
+     */
+    static byte[] generate(String kind, int size) {
+        Random random = new Random(size * 31L + kind.hashCode());
+        switch (kind) {
+            case "text":
+                return text(random, size);
+            case "json":
+                return json(random, size);
+            case "random":
+                byte[] bytes = new byte[size];
+                random.nextBytes(bytes);
+                return bytes;
+            default:
+                throw new IllegalArgumentException("Unknown payload kind: " + kind);
+        }
+    }
+
+    private static byte[] text(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 16);
+        while (sb.length() < size) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        return truncate(sb, size);
+    }
+
+    private static byte[] json(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        sb.append('[');
+        while (sb.length() < size) {
+            sb.append("{\"name\":\"").append(WORDS[random.nextInt(WORDS.length)])
+                    .append("\",\"count\":").append(random.nextInt(100000))
+                    .append(",\"ratio\":").append(random.nextDouble())
+                    .append(",\"enabled\":").append(random.nextBoolean())
+                    .append("},");
+        }
+        return truncate(sb, size);
+    }
+
+    private static byte[] truncate(StringBuilder sb, int size) {
+        byte[] bytes = new byte[size];
+        byte[] full = sb.toString().getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(full, 0, bytes, 0, size);
+        return bytes;
+    }
+}
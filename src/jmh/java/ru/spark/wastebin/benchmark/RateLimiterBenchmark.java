@@ -0,0 +1,64 @@
+package ru.spark.wastebin.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.spark.wastebin.util.RateLimiter;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter checks spread over many distinct client addresses, from several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RateLimiterBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int distinctAddresses;
+
+    /**
+     * The fraction of addresses which are IPv6
+     */
+    @Param({"0", "0.5"})
+    public double ipv6Fraction;
+
+    private RateLimiter rateLimiter;
+    private String[] addresses;
+
+    @Setup
+    public void setup() {
+        this.rateLimiter = new RateLimiter(10, 30);
+
+        Random random = new Random(this.distinctAddresses);
+        this.addresses = new String[this.distinctAddresses];
+        for (int i = 0; i < this.distinctAddresses; i++) {
+            if (random.nextDouble() < this.ipv6Fraction) {
+                this.addresses[i] = String.format("2001:db8:%x:%x::%x", random.nextInt(0x10000), random.nextInt(0x10000), random.nextInt(0x10000));
+            } else {
+                this.addresses[i] = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean check() {
+        return this.rateLimiter.check(this.addresses[ThreadLocalRandom.current().nextInt(this.addresses.length)]);
+    }
+}
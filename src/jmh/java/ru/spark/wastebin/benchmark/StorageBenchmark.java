@@ -0,0 +1,107 @@
+package ru.spark.wastebin.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.spark.wastebin.content.Content;
+import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.util.Compression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Save, load and metadata load latency of each storage engine, against a temp directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    /**
+     * The number of pastes to read from
+     */
+    private static final int KEY_COUNT = 1000;
+
+    @Param({"file", "segment"})
+    public String engine;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    /**
+     * Memory-map content at least this many KB long when loading, or 0 to disable
+     */
+    @Param({"0"})
+    public int mappedThresholdKb;
+
+    private Path directory;
+    private ScheduledExecutorService executor;
+    private ContentStorageHandler handler;
+    private Content template;
+    private String[] keys;
+
+    @Setup
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("wastebin-bench");
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.handler = new ContentStorageHandler(this.executor, Storages.create(this.engine, this.directory), this.mappedThresholdKb * 1024);
+
+        long expiry = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        this.template = new Content("template", "text/plain", expiry, System.currentTimeMillis(), false, null, Compression.compress(Payloads.generate("text", this.size)));
+        this.keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            this.keys[i] = "key" + i;
+            this.handler.save(copy(this.keys[i]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.handler.close();
+        this.executor.shutdown();
+        Storages.delete(this.directory);
+    }
+
+    private Content copy(String key) {
+        Content c = new Content(key, this.template.getContentType(), this.template.getExpiry(), this.template.getLastModified(), false, null, this.template.getContentBuffer());
+        c.setETag(this.template.getETag());
+        return c;
+    }
+
+    private String randomKey() {
+        return this.keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)];
+    }
+
+    @Benchmark
+    public void save() {
+        this.handler.save(copy(randomKey()));
+    }
+
+    @Benchmark
+    public Content load() throws Exception {
+        return this.handler.load(randomKey());
+    }
+
+    @Benchmark
+    public Content loadMeta() throws IOException {
+        return this.handler.loadMeta(randomKey());
+    }
+}
@@ -0,0 +1,44 @@
+package ru.spark.wastebin.benchmark;
+
+import ru.spark.wastebin.content.Content;
+import ru.spark.wastebin.content.storage.ContentStorage;
+import ru.spark.wastebin.content.storage.FileContentStorage;
+import ru.spark.wastebin.content.storage.SegmentContentStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Creates and cleans up storage engines for benchmarks.
+ */
+final class Storages {
+
+    private Storages() {
+    }
+
+    static ContentStorage create(String engine, Path directory) throws IOException {
+        switch (engine) {
+            case "file":
+                return new FileContentStorage(directory);
+            case "segment":
+                return new SegmentContentStorage(directory.resolve("segments"), 64 * Content.MEGABYTE_LENGTH, 0.6);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    // ignore
+                }
+            });
+        }
+    }
+}
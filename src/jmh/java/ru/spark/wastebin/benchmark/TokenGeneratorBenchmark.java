@@ -0,0 +1,48 @@
+package ru.spark.wastebin.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.spark.wastebin.util.TokenGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key generation throughput, uncontended and with many threads sharing one generator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenGeneratorBenchmark {
+
+    private final TokenGenerator keyGenerator = new TokenGenerator(7);
+    private final TokenGenerator authKeyGenerator = new TokenGenerator(32, true);
+
+    @Benchmark
+    @Threads(1)
+    public String generateKey() {
+        return this.keyGenerator.generate();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String generateKeyContended() {
+        return this.keyGenerator.generate();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String generateAuthKeyContended() {
+        return this.authKeyGenerator.generate();
+    }
+}
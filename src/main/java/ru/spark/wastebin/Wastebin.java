@@ -1,28 +1,50 @@
 package ru.spark.wastebin;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharStreams;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.io.IoBuilder;
+import ru.spark.wastebin.cluster.ClusterNode;
 import ru.spark.wastebin.content.Content;
 import ru.spark.wastebin.content.ContentCache;
 import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.content.KeyAllocator;
+import ru.spark.wastebin.content.KeyFilter;
+import ru.spark.wastebin.content.OffHeapContentCache;
+import ru.spark.wastebin.content.WriteBehindQueue;
+import ru.spark.wastebin.content.storage.ArchiveContentStorage;
+import ru.spark.wastebin.content.storage.ContentStorage;
+import ru.spark.wastebin.content.storage.FileContentStorage;
+import ru.spark.wastebin.content.storage.SegmentContentStorage;
+import ru.spark.wastebin.http.AccessLog;
+import ru.spark.wastebin.http.ClusterProxy;
+import ru.spark.wastebin.http.ResponseCache;
+import ru.spark.wastebin.http.TailHub;
 import ru.spark.wastebin.http.WastebinServer;
+import ru.spark.wastebin.util.AdmissionControl;
+import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.CompressionEngine;
 import ru.spark.wastebin.util.Configuration;
 import ru.spark.wastebin.util.RateLimiter;
-import ru.spark.wastebin.util.TokenGenerator;
+import ru.spark.wastebin.util.VirtualThreads;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * Simple "pastebin" service.
@@ -36,7 +58,36 @@ public final class Wastebin implements AutoCloseable {
     /**
      * Executor service for performing file based i/o
      */
-    private final ScheduledExecutorService executor;
+    private final ExecutorService executor;
+    /**
+     * Executor service for scheduled background work
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * Engine used to compress & decompress content
+     */
+    private final CompressionEngine compressionEngine;
+    /**
+     * The content storage handler
+     */
+    private final ContentStorageHandler contentStorageHandler;
+    /**
+     * The content cache
+     */
+    private final ContentCache contentCache;
+    /**
+     * Where the hot keys are saved on shutdown, and how many
+     */
+    private final Path hotKeysPath;
+    private final int hotKeysLimit;
+    /**
+     * The access log
+     */
+    private final AccessLog accessLog;
+    /**
+     * Notifies clients watching pastes of changes
+     */
+    private final TailHub tailHub;
     /**
      * The web server instance
      */
@@ -46,23 +97,124 @@ public final class Wastebin implements AutoCloseable {
         // setup simple logger
         LOGGER.info("loading wastebin...");
 
-        // setup executor
-        this.executor = Executors.newScheduledThreadPool(
-                config.getInt("corePoolSize", 16),
-                new ThreadFactoryBuilder().setNameFormat("wastebin-io-%d").build()
+        // setup executors
+        // per-request i/o has its own pool, so it never waits behind write-behind flushes - or
+        // runs on a virtual thread each, if enabled & supported, so a slow disk doesn't hold up
+        // requests queued behind it
+        int corePoolSize = config.getInt("corePoolSize", 16);
+        ExecutorService executor = null;
+        if (config.getBoolean("virtualThreads", false)) {
+            executor = VirtualThreads.newExecutor("wastebin-io-");
+            if (executor == null) {
+                LOGGER.warn("virtual threads are not supported by this runtime (" + System.getProperty("java.version") + "), using a thread pool");
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(
+                    corePoolSize,
+                    new ThreadFactoryBuilder().setNameFormat("wastebin-io-%d").build()
+            );
+        }
+        this.executor = executor;
+
+        // write-behind flushes & invalidation runs have their own small pool
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+                config.getInt("schedulerPoolSize", 2),
+                new ThreadFactoryBuilder().setNameFormat("wastebin-scheduler-%d").build()
         );
+        // delayed write-behind flushes are drained on close, rather than waited for
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.scheduler = scheduler;
+
+        // setup compression
+        int compressionThreads = config.getInt("compressionThreads", Runtime.getRuntime().availableProcessors());
+        this.compressionEngine = new CompressionEngine(
+                config.getInt("compressionLevel", Deflater.DEFAULT_COMPRESSION),
+                1024 * config.getInt("parallelCompressionThresholdKb", 1024),
+                1024 * config.getInt("compressionBlockSizeKb", 256),
+                compressionThreads > 1 ? Executors.newFixedThreadPool(
+                        compressionThreads,
+                        new ThreadFactoryBuilder().setNameFormat("wastebin-compress-%d").setDaemon(true).build()
+                ) : null
+        );
+        Compression.setEngine(this.compressionEngine);
+
+        // setup storage
+        Path contentPath = Paths.get(config.getString("contentPath", "content"));
+        // existing content is scanned on startup using this many threads
+        int scanThreads = config.getInt("scanThreads", Runtime.getRuntime().availableProcessors());
+        ContentStorage contentStorage;
+        if (config.getString("storageEngine", "file").equals("segment")) {
+            contentStorage = new SegmentContentStorage(
+                    contentPath.resolve("segments"),
+                    Content.MEGABYTE_LENGTH * config.getInt("segmentSizeMb", 64),
+                    config.getDouble("segmentCompactionThreshold", 0.6),
+                    scanThreads
+            );
+        } else {
+            contentStorage = new FileContentStorage(contentPath, scanThreads);
+        }
+
+        // content unused for this long is recompressed into archive packs, or never if 0
+        int archiveAfterMinutes = config.getInt("archiveAfterMinutes", 0);
+        if (archiveAfterMinutes > 0) {
+            contentStorage = new ArchiveContentStorage(
+                    contentStorage,
+                    contentPath.resolve("archive"),
+                    TimeUnit.MINUTES.toMillis(archiveAfterMinutes),
+                    config.getInt("archiveCompressionLevel", 19),
+                    Content.MEGABYTE_LENGTH * config.getInt("archivePackSizeMb", 64),
+                    1024 * config.getInt("archiveDictionaryKb", 64),
+                    config.getDouble("archiveCompactionThreshold", 0.5),
+                    config.getInt("archiveBatchSize", 1000),
+                    scanThreads
+            );
+        }
+
+        // lookups for keys which don't exist are answered from a filter of every stored key
+        double keyFilterFalsePositiveRate = config.getDouble("keyFilterFalsePositiveRate", 0.01);
+        KeyFilter keyFilter = keyFilterFalsePositiveRate > 0
+                ? new KeyFilter(config.getLong("keyFilterCapacity", 65536), keyFilterFalsePositiveRate)
+                : null;
 
         // setup loader
-        ContentStorageHandler contentStorageHandler = new ContentStorageHandler(
+        this.contentStorageHandler = new ContentStorageHandler(
                 this.executor,
-                Paths.get("content")
+                this.scheduler,
+                contentStorage,
+                // large pastes are memory-mapped rather than read onto the heap
+                1024 * config.getInt("mappedContentThresholdKb", 0),
+                // none, batch (fsync once per batch - and once per file, for file storage) or write (fsync every write)
+                WriteBehindQueue.Durability.valueOf(config.getString("writeDurability", "none").toUpperCase()),
+                // saves are queued & written in batches of up to this many, or immediately if 0
+                config.getInt("writeBehindBatchSize", 256),
+                config.getLong("writeBehindDelayMs", 5),
+                // identical write-once uploads share one stored body - off by default, as each
+                // deduplicated upload is stored as two records
+                config.getBoolean("deduplicateContent", false),
+                keyFilter
         );
 
+        // build off-heap content cache
+        OffHeapContentCache offHeapCache = null;
+        int offHeapCacheMaxSizeMb = config.getInt("offHeapCacheMaxSizeMb", 0);
+        if (offHeapCacheMaxSizeMb > 0) {
+            offHeapCache = new OffHeapContentCache(
+                    config.getInt("offHeapCacheSlabSizeMb", 16),
+                    offHeapCacheMaxSizeMb
+            );
+            LOGGER.info("using an off-heap content cache of up to " + (offHeapCache.getCapacity() / Content.MEGABYTE_LENGTH) + " MB");
+        }
+
         // build content cache
-        ContentCache contentCache = new ContentCache(
-                contentStorageHandler,
+        this.contentCache = new ContentCache(
+                this.contentStorageHandler,
                 config.getInt("cacheExpiryMinutes", 10),
-                config.getInt("cacheMaxSizeMb", 200)
+                config.getInt("cacheMaxSizeMb", 200),
+                config.getInt("variantCachePercent", 20),
+                // well below the default vm.max_map_count of 65530
+                config.getInt("maxMappedContent", 16384),
+                offHeapCache
         );
 
         // load index page
@@ -73,37 +225,137 @@ public final class Wastebin implements AutoCloseable {
             throw new RuntimeException(e);
         }
 
+        // setup access log
+        this.accessLog = new AccessLog(
+                AccessLog.Mode.valueOf(config.getString("accessLog", "text").toUpperCase()),
+                Paths.get(config.getString("accessLogPath", "logs/access.bin")),
+                config.getInt("accessLogRingSize", 8192),
+                config.getDouble("accessLogSampleRate", 1.0)
+        );
+
+        // the maximum number of client addresses each rate limiter tracks
+        int rateLimiterMaxEntries = config.getInt("rateLimiterMaxEntries", RateLimiter.DEFAULT_MAX_ENTRIES);
+
+        // setup clustering - each node stores the keys the hash ring assigns to it
+        ClusterProxy cluster = null;
+        String clusterNodeId = config.getString("clusterNodeId", "");
+        if (!clusterNodeId.isEmpty()) {
+            Map<String, ClusterNode> nodes = new LinkedHashMap<>();
+            // clients are sent to a node directly at its public url, which defaults to its address
+            Map<String, String> publicUrls = config.getStringMap("clusterPublicUrls");
+            config.getStringMap("clusterNodes").forEach((id, address) -> nodes.put(id, new ClusterNode(id, address, publicUrls.getOrDefault(id, "http://" + address))));
+            ClusterNode self = nodes.get(clusterNodeId);
+            if (self == null) {
+                throw new IllegalArgumentException("clusterNodes doesn't contain this node (" + clusterNodeId + ")");
+            }
+            cluster = new ClusterProxy(
+                    self,
+                    nodes.values(),
+                    config.getInt("clusterVirtualNodes", 128),
+                    config.getInt("clusterProxyThreads", 16),
+                    // requests waiting for a proxy thread, beyond which clients are told to retry
+                    config.getInt("clusterProxyMaxQueued", 256),
+                    config.getInt("clusterTimeoutMs", 10000),
+                    // proves a request was forwarded by another node - if empty, they're trusted by address
+                    config.getString("clusterSecret", "")
+            );
+            LOGGER.info("running as " + self + " in a cluster of " + nodes.size() + " nodes");
+        }
+
+        // clients can stream changes to modifiable pastes, or long-poll for the next one
+        this.tailHub = new TailHub(
+                TimeUnit.SECONDS.toMillis(config.getLong("tailStreamTimeoutSeconds", 300)),
+                TimeUnit.SECONDS.toMillis(config.getLong("tailHeartbeatSeconds", 15)),
+                TimeUnit.SECONDS.toMillis(config.getLong("tailMaxWaitSeconds", 60)),
+                config.getInt("tailMaxSubscribers", 10000)
+        );
+
+        // popular content is served from prepared responses, with their own memory budget
+        ResponseCache responseCache = new ResponseCache(
+                this.contentStorageHandler.getExecutor(),
+                config.getInt("cacheExpiryMinutes", 10),
+                config.getInt("responseCacheMaxSizeMb", 32) * Content.MEGABYTE_LENGTH,
+                config.getInt("responseCacheMaxBodyKb", 256) * 1024
+        );
+
+        // requests are refused with a 503 once too much i/o is queued for them, rather than
+        // queueing without limit when the disk is slow
+        WriteBehindQueue writeQueue = this.contentStorageHandler.getWriteQueue();
+        AdmissionControl admission = new AdmissionControl(
+                config.getInt("maxQueuedReads", 4096),
+                config.getInt("maxQueuedWrites", 1024),
+                // writes accepted but not yet flushed count towards the limit
+                writeQueue == null ? () -> 0 : writeQueue::getPendingCount,
+                config.getInt("admissionRetryAfterSeconds", 2),
+                // invalidation runs & preloading wait whilst this many reads are queued
+                config.getInt("backgroundYieldReadDepth", corePoolSize),
+                TimeUnit.SECONDS.toMillis(config.getLong("backgroundMaxDeferSeconds", 30))
+        );
+
+        // the path metrics are served on, or empty to disable
+        String metricsPath = config.getString("metricsPath", "/metrics");
+
+        // new keys are checked against the stored keys, & against paths served by other routes
+        KeyAllocator keyAllocator = new KeyAllocator(
+                this.contentStorageHandler,
+                // keys start at this length, and grow as the store fills up
+                config.getInt("keyLength", 7),
+                // the highest acceptable chance of a new key colliding with a stored one
+                config.getDouble("keyCollisionProbability", 0.001),
+                metricsPath.isEmpty() ? ImmutableSet.of("post") : ImmutableSet.of("post", metricsPath.substring(1))
+        );
+
         // setup the web server
         this.server = new WastebinServer(
-                contentStorageHandler,
-                contentCache,
+                this.contentStorageHandler,
+                this.contentCache,
                 System.getProperty("server.host", config.getString("host", "127.0.0.1")),
                 Integer.getInteger("server.port", config.getInt("port", 8080)),
                 new RateLimiter(
                         // by default, allow posts at rate of 3 times per min (every 20s)
                         config.getInt("postRateLimitPeriodMins", 10),
-                        config.getInt("postRateLimit", 30)
+                        config.getInt("postRateLimit", 30),
+                        rateLimiterMaxEntries
                 ),
                 new RateLimiter(
                         // by default, allow updates at rate of 15 times per min (every 4s)
                         config.getInt("updateRateLimitPeriodMins", 2),
-                        config.getInt("updateRateLimit", 26)
+                        config.getInt("updateRateLimit", 26),
+                        rateLimiterMaxEntries
                 ),
                 new RateLimiter(
                         // by default, allow reads at rate of 15 times per min (every 4s)
                         config.getInt("readRateLimitPeriodMins", 2),
-                        config.getInt("readRateLimit", 30)
+                        config.getInt("readRateLimit", 30),
+                        rateLimiterMaxEntries
                 ),
                 indexPage,
-                new TokenGenerator(config.getInt("keyLength", 7)),
+                keyAllocator,
                 (Content.MEGABYTE_LENGTH * config.getInt("maxContentLengthMb", 10)),
                 TimeUnit.MINUTES.toMillis(config.getLong("lifetimeMinutes", TimeUnit.DAYS.toMinutes(1))),
-                config.getLongMap("lifetimeMinutesByUserAgent").entrySet().stream().collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, e -> TimeUnit.MINUTES.toMillis(e.getValue())))
+                config.getLongMap("lifetimeMinutesByUserAgent").entrySet().stream().collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, e -> TimeUnit.MINUTES.toMillis(e.getValue()))),
+                this.accessLog,
+                cluster,
+                this.tailHub,
+                responseCache,
+                admission,
+                metricsPath
         );
         this.server.start();
 
+        // warm the cache with the keys which were hot when the last instance shut down
+        String hotKeysPath = config.getString("hotKeysPath", "");
+        this.hotKeysPath = hotKeysPath.isEmpty() ? contentPath.resolve("hot-keys.txt") : Paths.get(hotKeysPath);
+        this.hotKeysLimit = config.getInt("hotKeysLimit", 1000);
+        if (this.hotKeysLimit > 0) {
+            this.contentCache.preload(this.hotKeysPath, config.getInt("preloadConcurrency", 4), admission);
+        }
+
         // schedule invalidation task
-        this.executor.scheduleWithFixedDelay(contentStorageHandler::runInvalidation, 1, contentCache.getCacheTimeMins(), TimeUnit.MINUTES);
+        this.scheduler.scheduleWithFixedDelay(
+                () -> admission.runAfterReads(this.scheduler, this.contentStorageHandler::runInvalidation),
+                1, this.contentCache.getCacheTimeMins(), TimeUnit.MINUTES
+        );
     }
 
     // Bootstrap
@@ -121,12 +373,25 @@ public final class Wastebin implements AutoCloseable {
     @Override
     public void close() {
         this.server.halt();
+        this.tailHub.close();
+        if (this.hotKeysLimit > 0) {
+            try {
+                this.contentCache.saveHotKeys(this.hotKeysPath, this.hotKeysLimit);
+            } catch (IOException e) {
+                LOGGER.error("Exception whilst saving hot keys", e);
+            }
+        }
+        this.accessLog.close();
+        this.scheduler.shutdown();
         this.executor.shutdown();
         try {
+            this.scheduler.awaitTermination(30, TimeUnit.SECONDS);
             this.executor.awaitTermination(30, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
-            LOGGER.error("Exception whilst shutting down executor", e);
+            LOGGER.error("Exception whilst shutting down executors", e);
         }
+        this.contentStorageHandler.close();
+        this.compressionEngine.close();
     }
 
 }
@@ -0,0 +1,38 @@
+package ru.spark.wastebin.cluster;
+
+/**
+ * A wastebin instance which owns part of the key space.
+ */
+public final class ClusterNode {
+
+    private final String id;
+
+    // the host:port the node serves http on
+    private final String address;
+
+    // the url clients reach the node at, without a trailing slash
+    private final String publicUrl;
+
+    public ClusterNode(String id, String address, String publicUrl) {
+        this.id = id;
+        this.address = address;
+        this.publicUrl = publicUrl.endsWith("/") ? publicUrl.substring(0, publicUrl.length() - 1) : publicUrl;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    public String getPublicUrl() {
+        return this.publicUrl;
+    }
+
+    @Override
+    public String toString() {
+        return this.id + " (" + this.address + ")";
+    }
+}
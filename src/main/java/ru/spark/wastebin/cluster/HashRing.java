@@ -0,0 +1,68 @@
+package ru.spark.wastebin.cluster;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring which maps keys to the node that owns them.
+ *
+ * <p>Each node is placed on the ring at a number of points (virtual nodes), so the key
+ * space is split evenly, and adding or removing a node only moves the keys next to its
+ * points.</p>
+ */
+public final class HashRing {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    // ring positions in ascending order, and the node at each one
+    private final long[] points;
+    private final ClusterNode[] owners;
+
+    public HashRing(Collection<ClusterNode> nodes, int virtualNodes) {
+        Preconditions.checkArgument(!nodes.isEmpty(), "no nodes");
+        Preconditions.checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+
+        TreeMap<Long, ClusterNode> ring = new TreeMap<>();
+        for (ClusterNode node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // a collision between points just gives one of the nodes a slightly smaller share
+                ring.putIfAbsent(hash(node.getId() + "#" + i), node);
+            }
+        }
+
+        this.points = new long[ring.size()];
+        this.owners = new ClusterNode[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, ClusterNode> e : ring.entrySet()) {
+            this.points[i] = e.getKey();
+            this.owners[i] = e.getValue();
+            i++;
+        }
+    }
+
+    private static long hash(String s) {
+        return HASH.hashString(s, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Gets the node which owns the given key - the first at or after the key's position.
+     *
+     * @param key the key
+     * @return the owning node
+     */
+    public ClusterNode getOwner(String key) {
+        int i = Arrays.binarySearch(this.points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return this.owners[i == this.points.length ? 0 : i];
+    }
+
+}
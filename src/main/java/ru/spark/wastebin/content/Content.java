@@ -1,5 +1,11 @@
 package ru.spark.wastebin.content;
 
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 public final class Content {
 
     /**
@@ -17,15 +23,36 @@ public final class Content {
      */
     public static final long MEGABYTE_LENGTH = 1024L * 1024L;
 
+    /**
+     * Approximate heap cost of an instance whose content is memory-mapped
+     */
+    public static final int MAPPED_CONTENT_WEIGHT = 1024;
+
     private final String key;
     private final boolean modifiable;
     private final String authKey;
+
+    // held whilst modifiable content is updated in place, or null if the content never is
+    private final ReentrantLock lock;
+
+    // held whilst the updates are saved, so they're written in the order they were made
+    private final ReentrantLock saveLock;
+
     private String contentType;
     private long expiry;
     private long lastModified;
-    private byte[] content;
+    private ByteBuffer content;
+    private String eTag;
+    private String contentHash;
+
+    // if the content's backing array was allocated by append, so the space after it is free to write into
+    private boolean appendable;
 
     public Content(String key, String contentType, long expiry, long lastModified, boolean modifiable, String authKey, byte[] content) {
+        this(key, contentType, expiry, lastModified, modifiable, authKey, ByteBuffer.wrap(content));
+    }
+
+    public Content(String key, String contentType, long expiry, long lastModified, boolean modifiable, String authKey, ByteBuffer content) {
         this.key = key;
         this.contentType = contentType;
         this.expiry = expiry;
@@ -33,6 +60,8 @@ public final class Content {
         this.modifiable = modifiable;
         this.authKey = authKey;
         this.content = content;
+        this.lock = modifiable ? new ReentrantLock() : null;
+        this.saveLock = modifiable ? new ReentrantLock() : null;
     }
 
     public String getKey() {
@@ -71,12 +100,200 @@ public final class Content {
         return this.authKey;
     }
 
+    /**
+     * Gets the lock held whilst the content is updated in place - a lock rather than the
+     * monitor, so holding it over i/o wouldn't pin a virtual thread to its carrier.
+     *
+     * @return the lock, or null if the content isn't modifiable
+     */
+    public Lock getLock() {
+        return this.lock;
+    }
+
+    /**
+     * Gets the lock held whilst an update is saved. It's taken before the update's
+     * {@link #getLock() lock} is released, so saves run in the same order as the updates,
+     * without holding up readers of the content.
+     *
+     * @return the lock, or null if the content isn't modifiable
+     */
+    public Lock getSaveLock() {
+        return this.saveLock;
+    }
+
+    /**
+     * Gets the content as a byte array.
+     *
+     * <p>If the content is memory-mapped or doesn't fill its backing array, this makes
+     * a copy - prefer {@link #getContentBuffer()} where possible.</p>
+     *
+     * @return the content
+     */
     public byte[] getContent() {
-        return this.content;
+        ByteBuffer content = this.content;
+        if (content.hasArray() && content.arrayOffset() == 0 && content.position() == 0 && content.remaining() == content.array().length) {
+            return content.array();
+        }
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Gets a buffer containing the content, which can be consumed independently of
+     * any other callers.
+     *
+     * @return the content buffer
+     */
+    public ByteBuffer getContentBuffer() {
+        return this.content.duplicate();
+    }
+
+    public int getContentLength() {
+        return this.content.remaining();
+    }
+
+    public boolean isMapped() {
+        return this.content.isDirect();
+    }
+
+    /**
+     * Gets the approximate number of bytes of heap used to hold the content.
+     *
+     * @return the heap size
+     */
+    public int getHeapSize() {
+        ByteBuffer content = this.content;
+        return content.isDirect() ? MAPPED_CONTENT_WEIGHT : content.capacity();
     }
 
     public void setContent(byte[] content) {
+        setContent(ByteBuffer.wrap(content));
+    }
+
+    public void setContent(ByteBuffer content) {
         this.content = content;
+        this.appendable = false;
+    }
+
+    /**
+     * Appends data to the end of the content.
+     *
+     * <p>The content is held in an array with room to grow, so the existing bytes are only
+     * copied when it fills up. Buffers previously returned by {@link #getContentBuffer()}
+     * are unaffected. Callers must not append to the same instance concurrently.</p>
+     *
+     * @param data the data to append
+     */
+    public void append(ByteBuffer data) {
+        ByteBuffer content = this.content;
+        int length = content.remaining();
+        int newLength = Math.addExact(length, data.remaining());
+
+        ByteBuffer appended;
+        if (this.appendable && content.capacity() >= newLength) {
+            // write into the spare capacity - nothing else can see past the current limit
+            appended = content.duplicate();
+            appended.limit(newLength).position(length);
+            appended.put(data.duplicate());
+        } else {
+            // double the capacity, so a series of appends copies each byte a constant number of times
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(newLength, length * 2L));
+            appended = ByteBuffer.allocate(capacity);
+            appended.put(content.duplicate());
+            appended.put(data.duplicate());
+        }
+        appended.position(0).limit(newLength);
+
+        this.content = appended;
+        this.appendable = true;
+        this.contentHash = null;
+    }
+
+    /**
+     * Gets the entity tag of the content, which changes whenever the content does.
+     *
+     * @return the entity tag
+     */
+    public String getETag() {
+        return this.eTag;
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    /**
+     * Gets the hash of the uploaded body, if the stored content is shared with any other
+     * uploads of the same body.
+     *
+     * @return the content hash, or null if the content isn't deduplicated
+     */
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Copies the current state of the content, sharing its bytes.
+     *
+     * <p>Modifiable content is updated in place whilst holding its {@link #getLock() lock},
+     * so the copy is taken whilst holding it too - the header fields always describe the
+     * bytes they're copied with.</p>
+     *
+     * @return the copy
+     */
+    public Content snapshot() {
+        if (this.lock != null) {
+            this.lock.lock();
+        }
+        try {
+            Content copy = new Content(this.key, this.contentType, this.expiry, this.lastModified, this.modifiable, this.authKey, this.content.duplicate());
+            copy.eTag = this.eTag;
+            copy.contentHash = this.contentHash;
+            return copy;
+        } finally {
+            if (this.lock != null) {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Computes the entity tag for content after data has been appended to it, from the
+     * tag before the append, so the existing content doesn't need to be hashed again.
+     *
+     * @param previous the entity tag before the append
+     * @param appended the data appended
+     * @return the entity tag
+     */
+    public static String computeAppendedETag(String previous, ByteBuffer appended) {
+        return Hashing.murmur3_128().newHasher().putUnencodedChars(previous).putBytes(appended.duplicate()).hash().toString();
+    }
+
+    /**
+     * Computes the hash used to deduplicate an uploaded body.
+     *
+     * @param body the body, as uploaded
+     * @param compressed if the body was uploaded already compressed
+     * @return the content hash
+     */
+    public static String computeContentHash(byte[] body, boolean compressed) {
+        // a body uploaded pre-compressed is stored as-is, so it can't share with the identity upload
+        return Hashing.sha256().newHasher().putBoolean(compressed).putBytes(body).hash().toString();
+    }
+
+    /**
+     * Computes the entity tag for the given content.
+     *
+     * @param content the content
+     * @return the entity tag
+     */
+    public static String computeETag(ByteBuffer content) {
+        return Hashing.murmur3_128().newHasher().putBytes(content.duplicate()).hash().toString();
     }
 
     public boolean shouldExpire() {
@@ -1,14 +1,41 @@
 package ru.spark.wastebin.content;
 
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.Weigher;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.util.AdmissionControl;
+import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.TokenGenerator;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ContentCache {
 
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(ContentCache.class);
+
     private final int cacheTimeMins;
 
     /**
@@ -16,26 +43,358 @@ public class ContentCache {
      */
     private final AsyncLoadingCache<String, Content> contentCache;
 
-    public ContentCache(ContentStorageHandler loader, int cacheTimeMins, int cacheMaxSizeMb) {
+    /**
+     * Variant cache - caches the decompressed form of popular content, for clients which
+     * don't accept gzip. Null if disabled.
+     */
+    private final Cache<String, Variant> variantCache;
+
+    /**
+     * Second-level cache for content evicted from the heap, or null if disabled
+     */
+    private final OffHeapContentCache offHeapCache;
+
+    /**
+     * Executor service for performing file based i/o
+     */
+    private final Executor executor;
+
+    // the loader, also used to rule out keys which don't exist
+    private final ContentStorageHandler loader;
+
+    /**
+     * Cached content sharing each deduplicated body, by content hash. Guarded by itself.
+     */
+    private final Map<String, SharedBody> sharedBodies = new HashMap<>();
+
+    /**
+     * The number of keys loaded by the startup preload, and how long it took (or -1 if it
+     * hasn't finished)
+     */
+    private final AtomicLong preloadedCount = new AtomicLong();
+    private volatile long preloadNanos = -1;
+
+    public ContentCache(ContentStorageHandler loader, int cacheTimeMins, int cacheMaxSizeMb, int variantCachePercent, int maxMappedContent, OffHeapContentCache offHeapCache) {
         this.cacheTimeMins = cacheTimeMins;
-        this.contentCache = Caffeine.newBuilder()
-                .executor(loader.getExecutor())
+        this.offHeapCache = offHeapCache;
+        this.executor = loader.getExecutor();
+        this.loader = loader;
+
+        // the variant cache takes its share out of the same memory budget
+        long maxWeight = cacheMaxSizeMb * Content.MEGABYTE_LENGTH;
+        long variantMaxWeight = maxWeight * variantCachePercent / 100;
+        if (variantMaxWeight > 0) {
+            this.variantCache = Caffeine.newBuilder()
+                    .executor(this.executor)
+                    .expireAfterAccess(cacheTimeMins, TimeUnit.MINUTES)
+                    .maximumWeight(variantMaxWeight)
+                    .weigher((Weigher<String, Variant>) (key, variant) -> variant.identity.length)
+                    .recordStats()
+                    .build();
+        } else {
+            this.variantCache = null;
+        }
+
+        // each memory-mapped entry holds a mapping open, so they're weighed such that no more
+        // than maxMappedContent fit in the cache - whatever their heap cost
+        long contentMaxWeight = maxWeight - variantMaxWeight;
+        int mappedWeight = (int) Math.min(Integer.MAX_VALUE, Math.max(Content.MAPPED_CONTENT_WEIGHT, contentMaxWeight / Math.max(1, maxMappedContent)));
+
+        Caffeine<String, Content> builder = Caffeine.newBuilder()
+                .executor(this.executor)
                 .expireAfterAccess(cacheTimeMins, TimeUnit.MINUTES)
-                .maximumWeight(cacheMaxSizeMb * Content.MEGABYTE_LENGTH)
-                .weigher((Weigher<String, Content>) (path, content) -> content.getContent().length)
-                .buildAsync(loader);
+                .maximumWeight(contentMaxWeight)
+                .weigher((Weigher<String, Content>) (path, content) -> content.isMapped() ? mappedWeight : weigh(path, content))
+                .removalListener((String key, Content content, RemovalCause cause) -> {
+                    if (content == null) {
+                        return;
+                    }
+                    releaseSharedBody(key, content);
+
+                    // spill evicted content into the off-heap cache
+                    if (offHeapCache != null && cause.wasEvicted() && content.getKey() != null && !content.isMapped()) {
+                        offHeapCache.put(content);
+                    }
+                })
+                .recordStats();
+
+        if (offHeapCache == null) {
+            this.contentCache = builder.buildAsync(loader);
+            return;
+        }
+
+        // check the off-heap cache before going to disk
+        loader.setDeleteListener(offHeapCache::invalidate);
+        this.contentCache = builder.buildAsync((CacheLoader<String, Content>) key -> {
+            Content content = offHeapCache.get(key);
+            return content != null ? content : loader.load(key);
+        });
+    }
+
+    /**
+     * Weighs content held on the heap.
+     *
+     * <p>A deduplicated body is weighed in full by just one of the cached entries sharing it,
+     * and only while that entry is cached - the rest are weighed like mapped content.</p>
+     *
+     * @param key the key
+     * @param content the content
+     * @return the weight
+     */
+    private int weigh(String key, Content content) {
+        String contentHash = content.getContentHash();
+        if (contentHash == null) {
+            return content.getHeapSize();
+        }
+
+        synchronized (this.sharedBodies) {
+            SharedBody body = this.sharedBodies.computeIfAbsent(contentHash, h -> new SharedBody());
+            body.entries.put(key, content);
+            if (body.weighedBy == null || body.weighedBy.equals(key)) {
+                body.weighedBy = key;
+                return content.getHeapSize();
+            }
+            return Content.MAPPED_CONTENT_WEIGHT;
+        }
+    }
+
+    private void releaseSharedBody(String key, Content content) {
+        String contentHash = content.getContentHash();
+        if (contentHash == null) {
+            return;
+        }
+
+        String next;
+        synchronized (this.sharedBodies) {
+            SharedBody body = this.sharedBodies.get(contentHash);
+            // a replaced entry has already been superseded by its replacement
+            if (body == null || !body.entries.remove(key, content)) {
+                return;
+            }
+            if (body.entries.isEmpty()) {
+                this.sharedBodies.remove(contentHash);
+                return;
+            }
+            // the weight may also be partway to this entry, if it was removed before being reweighed
+            if (body.weighedBy != null && !key.equals(body.weighedBy)) {
+                return;
+            }
+            body.weighedBy = null;
+            next = body.entries.keySet().iterator().next();
+        }
+
+        // the body is still cached, so pass its weight on to another entry sharing it - the
+        // same future is put back, which reweighs the entry without replacing it
+        this.contentCache.asMap().computeIfPresent(next, (k, future) -> future);
     }
 
     public int getCacheTimeMins() {
         return this.cacheTimeMins;
     }
 
+    public Executor getExecutor() {
+        return this.executor;
+    }
+
+    public OffHeapContentCache getOffHeapCache() {
+        return this.offHeapCache;
+    }
+
+    public CacheStats getStats() {
+        return this.contentCache.synchronous().stats();
+    }
+
+    public long getWeightedSize() {
+        return this.contentCache.synchronous().policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    public CacheStats getVariantStats() {
+        return this.variantCache == null ? CacheStats.empty() : this.variantCache.stats();
+    }
+
+    public long getPreloadedCount() {
+        return this.preloadedCount.get();
+    }
+
+    public long getPreloadNanos() {
+        return this.preloadNanos;
+    }
+
+    /**
+     * Gets the most recently accessed keys in the cache, most recent first.
+     *
+     * @param limit the maximum number of keys
+     * @return the keys
+     */
+    public List<String> getHotKeys(int limit) {
+        Map<String, Content> youngest = this.contentCache.synchronous().policy().expireAfterAccess()
+                .map(expiration -> expiration.youngest(limit))
+                .orElse(Collections.emptyMap());
+
+        List<String> keys = new ArrayList<>(youngest.size());
+        for (Map.Entry<String, Content> e : youngest.entrySet()) {
+            // skip keys which turned out not to exist
+            if (e.getValue().getKey() != null) {
+                keys.add(e.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Saves the most recently accessed keys, so they can be preloaded on the next startup.
+     *
+     * @param path the file to save to
+     * @param limit the maximum number of keys
+     * @throws IOException if an i/o error occurs
+     */
+    public void saveHotKeys(Path path, int limit) throws IOException {
+        List<String> keys = getHotKeys(limit);
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmpPath, keys, StandardCharsets.UTF_8);
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Saved " + keys.size() + " hot keys");
+    }
+
+    /**
+     * Loads the keys saved by {@link #saveHotKeys(Path, int)} into the cache in the
+     * background, with at most {@code concurrency} loads in flight at once. Loads wait
+     * whilst reads from clients are queued.
+     *
+     * @param path the file the keys were saved to
+     * @param concurrency the maximum number of concurrent loads
+     * @param admission the admission control, which loads yield to queued reads through
+     * @throws IOException if an i/o error occurs reading the keys
+     */
+    public void preload(Path path, int concurrency, AdmissionControl admission) throws IOException {
+        if (!Files.exists(path)) {
+            this.preloadNanos = 0;
+            return;
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (String key : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (!key.isEmpty() && !TokenGenerator.INVALID_TOKEN_PATTERN.matcher(key).find()) {
+                keys.add(key);
+            }
+        }
+
+        // loads run on the i/o executor - this thread just keeps the right number in flight
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            Semaphore permits = new Semaphore(concurrency);
+            for (String key : keys) {
+                permits.acquireUninterruptibly();
+                admission.awaitReads();
+                this.contentCache.get(key).whenComplete((content, throwable) -> {
+                    if (throwable == null && content != null && content.getKey() != null) {
+                        this.preloadedCount.incrementAndGet();
+                    } else {
+                        // don't hold on to keys which have since expired
+                        this.contentCache.synchronous().invalidate(key);
+                    }
+                    permits.release();
+                });
+            }
+            permits.acquireUninterruptibly(concurrency);
+
+            this.preloadNanos = System.nanoTime() - start;
+            LOGGER.info("Preloaded " + this.preloadedCount.get() + " of " + keys.size() + " hot keys in " + TimeUnit.NANOSECONDS.toMillis(this.preloadNanos) + "ms");
+        }, "wastebin-preload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     public void put(String key, CompletableFuture<Content> future) {
         this.contentCache.put(key, future);
     }
 
+    /**
+     * Gets the content for the given key, which completes with null if there is none.
+     *
+     * @param key the key
+     * @return the content
+     */
     public CompletableFuture<Content> get(String key) {
-        return this.contentCache.get(key);
+        if (this.loader.mightExist(key)) {
+            // hits never reach the storage, so they're counted as uses of the key there too
+            this.loader.touch(key);
+            return this.contentCache.get(key);
+        }
+
+        // keys which don't exist are answered without going to storage - but content which
+        // was just posted is cached before it's tracked by the key filter
+        CompletableFuture<Content> cached = this.contentCache.asMap().get(key);
+        return cached != null ? cached : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Gets the decompressed form of the given content, using a cached variant if possible.
+     *
+     * @param content the content
+     * @return the decompressed content
+     * @throws IOException if the content could not be decompressed
+     */
+    public byte[] getDecompressed(Content content) throws IOException {
+        if (this.variantCache == null) {
+            return Compression.decompress(content.getContentBuffer());
+        }
+
+        Variant variant = this.variantCache.getIfPresent(content.getKey());
+        if (variant != null && variant.eTag.equals(content.getETag())) {
+            return variant.identity;
+        }
+
+        // caffeine's frequency sketch decides whether the variant is worth keeping
+        byte[] identity = Compression.decompress(content.getContentBuffer());
+        this.variantCache.put(content.getKey(), new Variant(content.getETag(), identity));
+        return identity;
+    }
+
+    /**
+     * Invalidates any cached variants of the content with the given key.
+     *
+     * @param key the key
+     */
+    public void invalidateVariants(String key) {
+        if (this.variantCache != null) {
+            this.variantCache.invalidate(key);
+        }
+    }
+
+    /**
+     * Invalidates any copy of the content with the given key held in the off-heap cache.
+     *
+     * @param key the key
+     */
+    public void invalidateOffHeap(String key) {
+        if (this.offHeapCache != null) {
+            this.offHeapCache.invalidate(key);
+        }
+    }
+
+    /**
+     * A deduplicated body held by cached content
+     */
+    private static final class SharedBody {
+        // the cached content sharing the body, by key
+        private final Map<String, Content> entries = new HashMap<>();
+
+        // the key of the entry carrying the body's weight, or null if it's being passed on
+        private String weighedBy;
+    }
+
+    /**
+     * A decoded form of some content
+     */
+    private static final class Variant {
+        private final String eTag;
+        private final byte[] identity;
+
+        Variant(String eTag, byte[] identity) {
+            this.eTag = eTag;
+            this.identity = identity;
+        }
     }
 
 }
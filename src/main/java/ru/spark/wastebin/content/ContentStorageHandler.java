@@ -3,14 +3,23 @@ package ru.spark.wastebin.content;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.content.storage.ContentStorage;
+import ru.spark.wastebin.content.storage.DeduplicatingContentStorage;
 import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.LatencyHistogram;
 
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class ContentStorageHandler implements CacheLoader<String, Content> {
 
@@ -22,180 +31,383 @@ public class ContentStorageHandler implements CacheLoader<String, Content> {
     /**
      * Executor service for performing file based i/o
      */
-    private final ScheduledExecutorService executor;
+    private final ExecutorService executor;
 
-    // the path to store the content in
-    private final Path contentPath;
+    /**
+     * Executor service for scheduled background work
+     */
+    private final ScheduledExecutorService scheduler;
 
-    public ContentStorageHandler(ScheduledExecutorService executor, Path contentPath) throws IOException {
-        this.executor = executor;
-        this.contentPath = contentPath;
+    // the storage backend, which shares bodies between identical uploads
+    private final DeduplicatingContentStorage storage;
+
+    // if write-once uploads should be deduplicated by content hash
+    private final boolean deduplicate;
+
+    // the minimum content length to memory-map when loading, or 0 to always load onto the heap
+    private final int minMappedLength;
+
+    /**
+     * Tracks the expiry time of every stored key
+     */
+    private final ExpiryWheel expiryWheel;
+
+    /**
+     * Filter of every stored key, kept in step by the expiry wheel, or null if disabled
+     */
+    private final KeyFilter keyFilter;
+
+    /**
+     * Called with each key deleted from storage, so copies held elsewhere are dropped too
+     */
+    private volatile Consumer<String> deleteListener = key -> {};
+
+    /**
+     * The total number of keys expired by the invalidation task
+     */
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * The number of keys expired by the last invalidation run
+     */
+    private volatile int lastExpiredBatchSize;
+
+    /**
+     * Storage timings and throughput
+     */
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+    private final LatencyHistogram saveLatency = new LatencyHistogram();
+    private final LatencyHistogram invalidationLatency = new LatencyHistogram();
+    private final LongAdder loadBytes = new LongAdder();
+    private final LongAdder saveBytes = new LongAdder();
+
+    /**
+     * The number of uploads which reused an existing body rather than storing their own
+     */
+    private final LongAdder deduplicatedCount = new LongAdder();
+
+    /**
+     * How long the startup scan of existing content took
+     */
+    private final long scanNanos;
+
+    /**
+     * Queue of saves waiting to be written, or null if saves are written immediately
+     */
+    private final WriteBehindQueue writeQueue;
 
-        // make directories
-        Files.createDirectories(this.contentPath);
+    // the durability policy used when writing immediately
+    private final WriteBehindQueue.Durability durability;
+
+    public ContentStorageHandler(ScheduledExecutorService executor, ContentStorage storage, int minMappedLength) throws IOException {
+        this(executor, executor, storage, minMappedLength, WriteBehindQueue.Durability.NONE, 0, 0, false, null);
+    }
+
+    public ContentStorageHandler(ExecutorService executor, ScheduledExecutorService scheduler, ContentStorage storage, int minMappedLength, WriteBehindQueue.Durability durability, int writeBatchSize, long writeDelayMillis, boolean deduplicate, KeyFilter keyFilter) throws IOException {
+        this.executor = executor;
+        this.scheduler = scheduler;
+        // always wrapped, so content stored as a shared body can be read even if deduplication is turned off
+        this.storage = new DeduplicatingContentStorage(storage);
+        this.deduplicate = deduplicate;
+        this.minMappedLength = minMappedLength;
+        this.durability = durability;
+        this.writeQueue = writeBatchSize > 0
+                ? new WriteBehindQueue(scheduler, this::writeOrThrow, durability, writeBatchSize, writeDelayMillis)
+                : null;
+
+        // seed the expiry wheel with the existing content
+        long start = System.nanoTime();
+        this.keyFilter = keyFilter;
+        this.expiryWheel = new ExpiryWheel(TimeUnit.SECONDS.toMillis(1), System.currentTimeMillis(), keyFilter);
+        this.storage.scan(this.expiryWheel::schedule);
+        this.scanNanos = System.nanoTime() - start;
+        LOGGER.info("Tracking expiry of " + this.expiryWheel.size() + " stored keys (scanned in " + TimeUnit.NANOSECONDS.toMillis(this.scanNanos) + "ms)");
     }
 
-    public ScheduledExecutorService getExecutor() {
+    public ExecutorService getExecutor() {
         return this.executor;
     }
 
+    public ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    public void setDeleteListener(Consumer<String> deleteListener) {
+        this.deleteListener = deleteListener;
+    }
+
+    public KeyFilter getKeyFilter() {
+        return this.keyFilter;
+    }
+
+    /**
+     * Gets if content might be stored for the given key, without doing any i/o.
+     *
+     * @param key the key
+     * @return false if nothing is stored for the key
+     */
+    public boolean mightExist(String key) {
+        return this.keyFilter == null || this.keyFilter.mightContain(key);
+    }
+
+    /**
+     * Records that the content for the given key was served from a cache.
+     *
+     * @param key the key
+     */
+    public void touch(String key) {
+        this.storage.touch(key);
+    }
+
+    /**
+     * Gets if content is stored (or being saved) for the given key.
+     *
+     * @param key the key
+     * @return if the key is in use
+     */
+    public boolean isStored(String key) {
+        return mightExist(key) && this.expiryWheel.contains(key);
+    }
+
+    /**
+     * Claims an unused key for content which is about to be saved.
+     *
+     * @param key the key
+     * @param expiry the expiry time of the content
+     * @return false if the key is already in use
+     */
+    public boolean reserve(String key, long expiry) {
+        return this.expiryWheel.scheduleIfAbsent(key, expiry);
+    }
+
+    public int getStoredCount() {
+        return this.expiryWheel.size();
+    }
+
+    /**
+     * Loads the content for the given key.
+     *
+     * <p>Returns null if nothing is stored for the key, so that the cache doesn't keep an
+     * entry for it.</p>
+     */
     @Override
     public Content load(String path) throws Exception {
-        LOGGER.info("[I/O] Loading " + path + " from disk");
+        if (!mightExist(path)) {
+            return null;
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[I/O] Loading " + path + " from disk");
+        }
+
+        // content which hasn't been written yet is newer than anything in storage
+        if (this.writeQueue != null) {
+            Content pending = this.writeQueue.getPending(path);
+            if (pending != null) {
+                return pending;
+            }
+        }
 
+        long start = System.nanoTime();
         try {
-            Path resolved = this.contentPath.resolve(path);
-            return load(resolved);
+            Content content = this.minMappedLength > 0
+                    ? this.storage.loadMapped(path, this.minMappedLength)
+                    : this.storage.load(path);
+            this.loadLatency.recordSince(start);
+            if (content != null) {
+                this.loadBytes.add(content.getContentLength());
+            }
+            return content;
         } catch (Exception e) {
             LOGGER.error("Exception occurred loading '" + path + "'", e);
             throw e; // rethrow
         }
     }
 
-    private Content load(Path resolved) throws IOException {
-        if (!Files.exists(resolved)) {
-            return Content.EMPTY_CONTENT;
+    public Content loadMeta(String key) throws IOException {
+        if (this.writeQueue != null) {
+            Content pending = this.writeQueue.getPending(key);
+            if (pending != null) {
+                return pending;
+            }
         }
 
-        try (DataInputStream in = new DataInputStream(Files.newInputStream(resolved))) {
-            // read version
-            int version = in.readInt();
-
-            // read key
-            String key = in.readUTF();
-
-            // read content type
-            byte[] contentTypeBytes = new byte[in.readInt()];
-            in.readFully(contentTypeBytes);
-            String contentType = new String(contentTypeBytes);
-
-            // read expiry
-            long expiry = in.readLong();
+        Content content = this.storage.loadMeta(key);
+        return content == null ? Content.EMPTY_CONTENT : content;
+    }
 
-            // read last modified time
-            long lastModified = in.readLong();
+    public void save(String key, String contentType, byte[] rawContent, long expiry, String authKey, boolean requiresCompression, CompletableFuture<Content> future) {
+        // modifiable content is updated in place, so only write-once content can share a body
+        String contentHash = this.deduplicate && authKey == null ? Content.computeContentHash(rawContent, !requiresCompression) : null;
+
+        // reuse the body of an identical upload if there is one, skipping compression
+        ByteBuffer content = null;
+        if (contentHash != null) {
+            try {
+                content = this.storage.findBody(contentHash, this.minMappedLength > 0 ? this.minMappedLength : -1);
+            } catch (IOException e) {
+                LOGGER.error("Exception occurred loading the shared body for '" + key + "'", e);
+            }
+        }
 
-            // read modifiable state data
-            boolean modifiable = in.readBoolean();
-            String authKey = null;
-            if (modifiable) {
-                authKey = in.readUTF();
+        if (content != null) {
+            this.deduplicatedCount.increment();
+        } else {
+            content = requiresCompression ? Compression.compress(rawContent) : ByteBuffer.wrap(rawContent);
+            if (contentHash != null) {
+                content = this.storage.shareBody(contentHash, content);
             }
+        }
 
-            // read content
-            byte[] content = new byte[in.readInt()];
-            in.readFully(content);
+        // add directly to the cache
+        // it's quite likely that the file will be requested only a few seconds after it is uploaded
+        Content c = new Content(key, contentType, expiry, System.currentTimeMillis(), authKey != null, authKey, content);
+        c.setETag(Content.computeETag(content));
+        c.setContentHash(contentHash);
+        future.complete(c);
 
-            return new Content(key, contentType, expiry, lastModified, modifiable, authKey, content);
-        }
+        save(c);
     }
 
-    public Content loadMeta(Path resolved) throws IOException {
-        if (!Files.exists(resolved)) {
-            return Content.EMPTY_CONTENT;
+    public void save(Content c) {
+        this.expiryWheel.schedule(c.getKey(), c.getExpiry());
+        if (this.writeQueue != null) {
+            this.writeQueue.enqueue(c);
+        } else {
+            write(Collections.singletonList(c), this.durability != WriteBehindQueue.Durability.NONE);
         }
+    }
 
-        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(resolved)))) {
-            // read version
-            int version = in.readInt();
-
-            // read key
-            String key = in.readUTF();
+    /**
+     * Saves content which has had data appended to it, writing only the appended data
+     * where the storage allows.
+     *
+     * @param c the content
+     * @param previousLength the length of the content before the append
+     */
+    public void append(Content c, int previousLength) {
+        this.expiryWheel.schedule(c.getKey(), c.getExpiry());
 
-            // read content type
-            byte[] contentTypeBytes = new byte[in.readInt()];
-            in.readFully(contentTypeBytes);
-            String contentType = new String(contentTypeBytes);
+        // a queued save of the key would replace the record after the append - so join it instead
+        if (this.writeQueue != null && this.writeQueue.getPending(c.getKey()) != null) {
+            this.writeQueue.enqueue(c);
+            return;
+        }
 
-            // read expiry
-            long expiry = in.readLong();
+        long start = System.nanoTime();
+        try {
+            this.storage.append(c, previousLength, this.durability != WriteBehindQueue.Durability.NONE);
+        } catch (IOException e) {
+            LOGGER.error("Exception occurred appending to '" + c.getKey() + "'", e);
+        }
+        this.saveLatency.recordSince(start);
+        this.saveBytes.add(c.getContentLength() - previousLength);
+    }
 
-            // read last modified time
-            long lastModified = in.readLong();
+    private void write(List<Content> batch, boolean sync) {
+        try {
+            writeOrThrow(batch, sync);
+        } catch (IOException e) {
+            LOGGER.error("Exception occurred saving " + (batch.size() == 1 ? "'" + batch.get(0).getKey() + "'" : "a batch of " + batch.size()), e);
+        }
+    }
 
-            // read modifiable state data
-            boolean modifiable = in.readBoolean();
-            String authKey = null;
-            if (modifiable) {
-                authKey = in.readUTF();
-            }
+    private void writeOrThrow(List<Content> batch, boolean sync) throws IOException {
+        // modifiable content can change whilst it's being written, so each record is written
+        // from a consistent copy
+        List<Content> snapshots = new ArrayList<>(batch.size());
+        for (Content c : batch) {
+            snapshots.add(c.snapshot());
+        }
 
-            return new Content(key, contentType, expiry, lastModified, modifiable, authKey, Content.EMPTY_BYTES);
+        long start = System.nanoTime();
+        try {
+            this.storage.saveAll(snapshots, sync);
+        } finally {
+            this.saveLatency.recordSince(start);
+        }
+        for (Content c : snapshots) {
+            this.saveBytes.add(c.getContentLength());
         }
     }
 
-    public void save(String key, String contentType, byte[] content, long expiry, String authKey, boolean requiresCompression, CompletableFuture<Content> future) {
-        if (requiresCompression) {
-            content = Compression.compress(content);
-        }
+    public WriteBehindQueue getWriteQueue() {
+        return this.writeQueue;
+    }
 
-        // add directly to the cache
-        // it's quite likely that the file will be requested only a few seconds after it is uploaded
-        Content c = new Content(key, contentType, expiry, System.currentTimeMillis(), authKey != null, authKey, content);
-        future.complete(c);
+    public DeduplicatingContentStorage getStorage() {
+        return this.storage;
+    }
 
-        save(c);
+    public long getScanNanos() {
+        return this.scanNanos;
     }
 
-    public void save(Content c) {
-        // resolve the path to save at
-        Path path = this.contentPath.resolve(c.getKey());
+    public long getDeduplicatedCount() {
+        return this.deduplicatedCount.sum();
+    }
+
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    public int getLastExpiredBatchSize() {
+        return this.lastExpiredBatchSize;
+    }
 
-        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
-            // write version
-            out.writeInt(1);
+    public LatencyHistogram getLoadLatency() {
+        return this.loadLatency;
+    }
 
-            // write name
-            out.writeUTF(c.getKey());
+    public LatencyHistogram getSaveLatency() {
+        return this.saveLatency;
+    }
 
-            // write content type
-            byte[] contextType = c.getContentType().getBytes();
-            out.writeInt(contextType.length);
-            out.write(contextType);
+    public LatencyHistogram getInvalidationLatency() {
+        return this.invalidationLatency;
+    }
 
-            // write expiry time
-            out.writeLong(c.getExpiry());
+    public long getLoadBytes() {
+        return this.loadBytes.sum();
+    }
 
-            // write last modified
-            out.writeLong(c.getLastModified());
+    public long getSaveBytes() {
+        return this.saveBytes.sum();
+    }
 
-            // write modifiable state data
-            out.writeBoolean(c.isModifiable());
-            if (c.isModifiable()) {
-                out.writeUTF(c.getAuthKey());
+    public void runInvalidation() {
+        long start = System.nanoTime();
+        List<String> expired = this.expiryWheel.advance(System.currentTimeMillis());
+        for (String key : expired) {
+            try {
+                this.deleteListener.accept(key);
+                this.storage.delete(key);
+            } catch (IOException e) {
+                LOGGER.error("Exception occurred deleting '" + key + "'", e);
             }
+        }
 
-            // write content
-            out.writeInt(c.getContent().length);
-            out.write(c.getContent());
-        } catch (IOException e) {
-            LOGGER.error("Exception occurred saving '" + path + "'", e);
+        this.lastExpiredBatchSize = expired.size();
+        this.expiredCount.addAndGet(expired.size());
+        if (!expired.isEmpty()) {
+            LOGGER.info("Expired " + expired.size() + " keys");
         }
+
+        this.storage.runMaintenance();
+        this.invalidationLatency.recordSince(start);
     }
 
-    public void runInvalidation() {
-        try (Stream<Path> stream = Files.list(this.contentPath)) {
-            stream.filter(Files::isRegularFile)
-                    .forEach(path -> {
-                        try {
-                            Content content = loadMeta(path);
-                            if (content.shouldExpire()) {
-                                LOGGER.info("Expired: " + path.getFileName().toString());
-                                Files.delete(path);
-                            }
-                        } catch (EOFException e) {
-                            LOGGER.info("Corrupted: " + path.getFileName().toString());
-                            try {
-                                Files.delete(path);
-                            } catch (IOException e2) {
-                                // ignore
-                            }
-                        } catch (Exception e) {
-                            LOGGER.error("Exception occurred loading meta for '" + path.getFileName().toString() + "'", e);
-                        }
-                    });
+    public void close() {
+        // the executors have been shut down by now, so this is the only writer
+        if (this.writeQueue != null) {
+            if (!this.writeQueue.drain()) {
+                LOGGER.error(this.writeQueue.getPendingCount() + " queued saves could not be written");
+            }
+        }
+        try {
+            this.storage.close();
         } catch (IOException e) {
-            LOGGER.error("Exception thrown whilst invalidating", e);
+            LOGGER.error("Exception thrown whilst closing storage", e);
         }
     }
 }
@@ -0,0 +1,252 @@
+package ru.spark.wastebin.content;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel which tracks the expiry time of each stored key.
+ *
+ * <p>Each level has {@link #WHEEL_SIZE} slots. A slot on level {@code n} spans
+ * {@code WHEEL_SIZE^n} ticks, and is cascaded into the levels below as time reaches it.
+ * Scheduling a key and expiring it are both O(1), so the cost of an advance is proportional
+ * to the number of keys that actually expire.</p>
+ */
+final class ExpiryWheel {
+
+    /**
+     * Number of bits used to index a slot within a level
+     */
+    private static final int WHEEL_BITS = 6;
+
+    /**
+     * Number of slots in each level
+     */
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    /**
+     * Mask used to get the slot index within a level
+     */
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * Number of levels in the wheel
+     */
+    private static final int LEVELS = 4;
+
+    // the duration of a single tick
+    private final long tickMillis;
+
+    /**
+     * The slots for each level of the wheel
+     */
+    private final List<List<Entry>> wheel = new ArrayList<>(LEVELS * WHEEL_SIZE);
+
+    /**
+     * Entries too far in the future to fit in the wheel
+     */
+    private List<Entry> overflow = new ArrayList<>();
+
+    /**
+     * Entries which were already due when they were scheduled
+     */
+    private List<Entry> due = new ArrayList<>();
+
+    /**
+     * The current expiry time of each key
+     */
+    private final Map<String, Long> expiries = new HashMap<>();
+
+    /**
+     * The last tick the wheel was advanced to
+     */
+    private long currentTick;
+
+    /**
+     * Filter kept in step with the set of tracked keys, or null
+     */
+    private final KeyFilter filter;
+
+    ExpiryWheel(long tickMillis, long now) {
+        this(tickMillis, now, null);
+    }
+
+    ExpiryWheel(long tickMillis, long now, KeyFilter filter) {
+        this.tickMillis = tickMillis;
+        this.filter = filter;
+        this.currentTick = now / tickMillis;
+        for (int i = 0; i < LEVELS * WHEEL_SIZE; i++) {
+            this.wheel.add(null);
+        }
+    }
+
+    public synchronized int size() {
+        return this.expiries.size();
+    }
+
+    /**
+     * Schedules (or reschedules) the expiry of the given key.
+     *
+     * @param key the key
+     * @param expiry the expiry time
+     */
+    public synchronized void schedule(String key, long expiry) {
+        Long previous = this.expiries.put(key, expiry);
+        if (previous == null) {
+            if (this.filter != null && !this.filter.add(key)) {
+                this.filter.rebuild(this.expiries.keySet());
+            }
+        } else if (previous == expiry) {
+            // already in the wheel
+            return;
+        }
+        insert(new Entry(key, expiry));
+    }
+
+    /**
+     * Schedules the expiry of the given key, unless it's already tracked.
+     *
+     * @param key the key
+     * @param expiry the expiry time
+     * @return true if the key was scheduled
+     */
+    public synchronized boolean scheduleIfAbsent(String key, long expiry) {
+        if (this.expiries.containsKey(key)) {
+            return false;
+        }
+        schedule(key, expiry);
+        return true;
+    }
+
+    public synchronized boolean contains(String key) {
+        return this.expiries.containsKey(key);
+    }
+
+    /**
+     * Stops tracking the given key.
+     *
+     * @param key the key
+     */
+    public synchronized void remove(String key) {
+        // any entries left in the wheel are discarded when their slot is reached
+        if (this.expiries.remove(key) != null && this.filter != null) {
+            this.filter.remove(key);
+        }
+    }
+
+    private void insert(Entry entry) {
+        long tick = entry.expiry / this.tickMillis;
+        long delta = tick - this.currentTick;
+        if (delta <= 0) {
+            this.due.add(entry);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (WHEEL_BITS * (level + 1))) {
+                int slot = level * WHEEL_SIZE + (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                List<Entry> entries = this.wheel.get(slot);
+                if (entries == null) {
+                    this.wheel.set(slot, entries = new ArrayList<>());
+                }
+                entries.add(entry);
+                return;
+            }
+        }
+        this.overflow.add(entry);
+    }
+
+    /**
+     * Advances the wheel to the given time, removing and returning every key which has expired.
+     *
+     * @param now the current time
+     * @return the expired keys
+     */
+    public synchronized List<String> advance(long now) {
+        List<String> expired = new ArrayList<>();
+
+        List<Entry> due = this.due;
+        this.due = new ArrayList<>();
+        collect(due, now, expired);
+
+        long targetTick = now / this.tickMillis;
+        while (this.currentTick < targetTick) {
+            long tick = ++this.currentTick;
+
+            // cascade the higher levels down as we reach their slots
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    if (level == LEVELS - 1 && !this.overflow.isEmpty()) {
+                        List<Entry> overflow = this.overflow;
+                        this.overflow = new ArrayList<>();
+                        overflow.forEach(this::insert);
+                    }
+                    cascade(level * WHEEL_SIZE + (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+                }
+            }
+
+            int slot = (int) (tick & WHEEL_MASK);
+            List<Entry> entries = this.wheel.get(slot);
+            if (entries != null) {
+                this.wheel.set(slot, null);
+                collect(entries, now, expired);
+            }
+
+            // anything cascaded into the past becomes due now
+            if (!this.due.isEmpty()) {
+                due = this.due;
+                this.due = new ArrayList<>();
+                collect(due, now, expired);
+            }
+        }
+        return expired;
+    }
+
+    private void cascade(int slot) {
+        List<Entry> entries = this.wheel.get(slot);
+        if (entries != null) {
+            this.wheel.set(slot, null);
+            for (Entry entry : entries) {
+                if (isCurrent(entry)) {
+                    insert(entry);
+                }
+            }
+        }
+    }
+
+    private void collect(List<Entry> entries, long now, List<String> expired) {
+        for (Entry entry : entries) {
+            if (!isCurrent(entry)) {
+                continue;
+            }
+            if (entry.expiry < now) {
+                this.expiries.remove(entry.key);
+                if (this.filter != null) {
+                    this.filter.remove(entry.key);
+                }
+                expired.add(entry.key);
+            } else {
+                // not quite expired yet - wait for the next tick
+                this.due.add(entry);
+            }
+        }
+    }
+
+    // checks that the entry hasn't been superseded by a later schedule or removal
+    private boolean isCurrent(Entry entry) {
+        Long expiry = this.expiries.get(entry.key);
+        return expiry != null && expiry == entry.expiry;
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final long expiry;
+
+        Entry(String key, long expiry) {
+            this.key = key;
+            this.expiry = expiry;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package ru.spark.wastebin.content;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.util.TokenGenerator;
+
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Allocates keys for new content, checking them against the keys already in use.
+ *
+ * <p>Keys start at a minimum length, and get one character longer whenever the number of
+ * stored keys makes the chance of a new key colliding with one exceed a threshold.</p>
+ */
+public final class KeyAllocator {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(KeyAllocator.class);
+
+    /**
+     * Number of distinct characters in a key
+     */
+    private static final int ALPHABET_SIZE = 62;
+
+    /**
+     * How many keys to try when looking for one which matches a preference, before giving up on it
+     */
+    private static final int MAX_PREFERRED_ATTEMPTS = 256;
+
+    private final ContentStorageHandler index;
+    private final double maxCollisionProbability;
+    private final Set<String> reserved;
+
+    // the current key length, and the number of stored keys at which it has to grow
+    private volatile int length;
+    private volatile long growThreshold;
+
+    /**
+     * The number of generated keys which were already in use
+     */
+    private final LongAdder collisionCount = new LongAdder();
+
+    public KeyAllocator(ContentStorageHandler index, int minLength, double maxCollisionProbability, Set<String> reserved) {
+        Preconditions.checkArgument(minLength > 1, "minLength must be greater than 1");
+        Preconditions.checkArgument(maxCollisionProbability > 0 && maxCollisionProbability < 1, "maxCollisionProbability must be between 0 and 1");
+        this.index = index;
+        this.maxCollisionProbability = maxCollisionProbability;
+        this.reserved = ImmutableSet.copyOf(reserved);
+        this.length = minLength;
+        this.growThreshold = growThreshold(minLength);
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    public long getCollisionCount() {
+        return this.collisionCount.sum();
+    }
+
+    // the chance of a new key colliding is the number of stored keys over the number of possible keys
+    private long growThreshold(int length) {
+        return (long) Math.min(Long.MAX_VALUE, Math.pow(ALPHABET_SIZE, length) * this.maxCollisionProbability);
+    }
+
+    private int currentLength() {
+        long stored = this.index.getStoredCount();
+        if (stored <= this.growThreshold) {
+            return this.length;
+        }
+
+        synchronized (this) {
+            while (stored > this.growThreshold) {
+                this.length++;
+                this.growThreshold = growThreshold(this.length);
+                LOGGER.info("Increased key length to " + this.length + " (" + stored + " stored keys)");
+            }
+            return this.length;
+        }
+    }
+
+    /**
+     * Generates a key which isn't in use.
+     *
+     * <p>The key isn't claimed, so it must be passed to {@link #claim(String, long)} before
+     * content is saved under it.</p>
+     *
+     * @param preferred a preference for which keys to return, or null - keys not matching are
+     *                  only returned if none is found after a number of attempts
+     * @return the key
+     */
+    public String next(Predicate<String> preferred) {
+        int length = currentLength();
+        for (int attempts = 1; ; attempts++) {
+            String key = TokenGenerator.generate(length);
+            if (this.reserved.contains(key) || this.index.isStored(key)) {
+                this.collisionCount.increment();
+                continue;
+            }
+            if (preferred == null || attempts >= MAX_PREFERRED_ATTEMPTS || preferred.test(key)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * Claims a key returned by {@link #next(Predicate)}, by scheduling its expiry.
+     *
+     * @param key the key
+     * @param expiry the expiry time of the content
+     * @return false if the key has been taken since it was generated
+     */
+    public boolean claim(String key, long expiry) {
+        if (this.index.reserve(key, expiry)) {
+            return true;
+        }
+        this.collisionCount.increment();
+        return false;
+    }
+
+}
@@ -0,0 +1,161 @@
+package ru.spark.wastebin.content;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.util.CuckooFilter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A filter of every live key, used to answer lookups for keys which don't exist without
+ * going to the cache or storage.
+ *
+ * <p>Updates are made by the {@link ExpiryWheel}, which holds the authoritative set of live
+ * keys and rebuilds the filter at twice the size whenever it fills up. Lookups are lock-free
+ * unless they race with an update.</p>
+ */
+public final class KeyFilter {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(KeyFilter.class);
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final double falsePositiveRate;
+    private final StampedLock lock = new StampedLock();
+    private CuckooFilter filter;
+
+    /**
+     * The number of lookups the filter answered
+     */
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public KeyFilter(long initialCapacity, double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.filter = new CuckooFilter(initialCapacity, falsePositiveRate);
+    }
+
+    private static long hash(String key) {
+        return HASH.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    public long getMemoryBytes() {
+        long stamp = this.lock.readLock();
+        try {
+            return this.filter.getMemoryBytes();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = this.lock.readLock();
+        try {
+            return this.filter.size();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets if the key might exist.
+     *
+     * @param key the key
+     * @return false if the key definitely doesn't exist
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+
+        boolean result;
+        long stamp = this.lock.tryOptimisticRead();
+        try {
+            result = this.filter.mightContain(hash);
+        } catch (RuntimeException e) {
+            // a torn read of a filter being resized - retry under the lock
+            result = true;
+            stamp = 0;
+        }
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                result = this.filter.mightContain(hash);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        if (!result) {
+            this.rejectedCount.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param key the key
+     * @return false if the filter is full & needs to be {@link #rebuild(Collection) rebuilt}
+     */
+    boolean add(String key) {
+        long stamp = this.lock.writeLock();
+        try {
+            return this.filter.add(hash(key));
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a key which was previously added to the filter.
+     *
+     * @param key the key
+     */
+    void remove(String key) {
+        long stamp = this.lock.writeLock();
+        try {
+            this.filter.remove(hash(key));
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces the filter with a larger one containing the given keys.
+     *
+     * @param keys every live key
+     */
+    void rebuild(Collection<String> keys) {
+        long capacity = this.filter.getCapacity();
+        CuckooFilter filter;
+        do {
+            capacity = Math.max(capacity * 2, keys.size() * 2L);
+            filter = new CuckooFilter(capacity, this.falsePositiveRate);
+            for (String key : keys) {
+                if (!filter.add(hash(key))) {
+                    filter = null;
+                    break;
+                }
+            }
+        } while (filter == null);
+
+        long stamp = this.lock.writeLock();
+        try {
+            this.filter = filter;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+        LOGGER.info("Resized key filter to hold " + filter.getCapacity() + " keys in " + (filter.getMemoryBytes() / 1024) + " KB");
+    }
+
+}
@@ -0,0 +1,266 @@
+package ru.spark.wastebin.content;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A second-level content cache which stores content outside of the java heap.
+ *
+ * <p>Content is appended into fixed size slabs of direct memory. When the cache is full,
+ * the oldest slab and every entry within it is evicted, and its memory is reused for the
+ * next slab rather than allocated afresh.</p>
+ */
+public class OffHeapContentCache {
+
+    // the size of each slab
+    private final int slabSize;
+
+    // the maximum number of slabs to allocate
+    private final int maxSlabs;
+
+    /**
+     * Index of key --> cache entry
+     */
+    private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<>();
+
+    /**
+     * The allocated slabs, oldest first
+     */
+    private final ArrayDeque<Slab> slabs = new ArrayDeque<>();
+
+    /**
+     * The most recently evicted slab, held back for one eviction before its memory is reused
+     */
+    private Slab spare;
+
+    /**
+     * The number of bytes used by entries in the cache
+     */
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictedSlabCount = new AtomicLong();
+
+    public OffHeapContentCache(int slabSizeMb, int maxSizeMb) {
+        if (slabSizeMb <= 0) {
+            throw new IllegalArgumentException("slabSizeMb must be positive: " + slabSizeMb);
+        }
+        this.slabSize = (int) (slabSizeMb * Content.MEGABYTE_LENGTH);
+        this.maxSlabs = Math.max(1, maxSizeMb / slabSizeMb);
+    }
+
+    public long getCapacity() {
+        return (long) this.slabSize * this.maxSlabs;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return (long) this.slabSize * (this.slabs.size() + (this.spare != null ? 1 : 0));
+    }
+
+    public long getUsedBytes() {
+        return this.usedBytes.get();
+    }
+
+    public int getEntryCount() {
+        return this.index.size();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getEvictedSlabCount() {
+        return this.evictedSlabCount.get();
+    }
+
+    /**
+     * Gets the content cached for the given key.
+     *
+     * <p>The content is a read-only view of its slab, so it is weighed like mapped content by
+     * the heap cache. If the slab is evicted while the view is still reachable, the view is
+     * copied onto the heap before the slab's memory is reused.</p>
+     *
+     * @param key the key
+     * @return the content, or null if it is not cached or has expired
+     */
+    public Content get(String key) {
+        Entry entry = this.index.get(key);
+        if (entry != null && entry.expiry <= System.currentTimeMillis()) {
+            remove(key, entry);
+            entry = null;
+        }
+
+        Content c = null;
+        if (entry != null) {
+            synchronized (this) {
+                // the slab may have been evicted since the lookup
+                if (this.index.get(key) == entry) {
+                    c = new Content(key, entry.contentType, entry.expiry, entry.lastModified, entry.modifiable, entry.authKey, entry.content.asReadOnlyBuffer());
+                    c.setETag(entry.eTag);
+                    entry.slab.addView(c);
+                }
+            }
+        }
+
+        if (c == null) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        this.hitCount.incrementAndGet();
+        return c;
+    }
+
+    /**
+     * Adds the given content to the cache, unless the same version is already cached.
+     *
+     * @param content the content
+     */
+    public synchronized void put(Content content) {
+        int length = content.getContentLength();
+        if (length == 0 || length > this.slabSize) {
+            return;
+        }
+
+        Entry existing = this.index.get(content.getKey());
+        if (existing != null && existing.content.remaining() == length && Objects.equals(existing.eTag, content.getETag())) {
+            return;
+        }
+
+        Slab slab = this.slabs.peekLast();
+        if (slab == null || this.slabSize - slab.used < length) {
+            slab = allocateSlab();
+        }
+
+        ByteBuffer region = slab.buffer.duplicate();
+        region.position(slab.used).limit(slab.used + length);
+        region = region.slice();
+        region.duplicate().put(content.getContentBuffer());
+        slab.used += length;
+
+        Entry entry = new Entry(content, slab, region);
+        slab.entries.add(entry);
+        this.usedBytes.addAndGet(length);
+
+        existing = this.index.put(content.getKey(), entry);
+        if (existing != null) {
+            this.usedBytes.addAndGet(-existing.content.remaining());
+        }
+    }
+
+    /**
+     * Removes the content cached for the given key.
+     *
+     * @param key the key
+     */
+    public void invalidate(String key) {
+        Entry existing = this.index.remove(key);
+        if (existing != null) {
+            this.usedBytes.addAndGet(-existing.content.remaining());
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (this.index.remove(key, entry)) {
+            this.usedBytes.addAndGet(-entry.content.remaining());
+        }
+    }
+
+    private Slab allocateSlab() {
+        ByteBuffer buffer = null;
+        if (this.slabs.size() >= this.maxSlabs) {
+            Slab oldest = this.slabs.removeFirst();
+            for (Entry entry : oldest.entries) {
+                remove(entry.key, entry);
+            }
+            oldest.detachViews();
+            this.evictedSlabCount.incrementAndGet();
+
+            // a reader may have taken a buffer from a view just before it was detached, so
+            // the evicted slab sits out one eviction before anything overwrites it
+            if (this.spare != null) {
+                buffer = this.spare.buffer;
+                buffer.clear();
+            }
+            this.spare = oldest;
+        }
+
+        Slab slab = new Slab(buffer != null ? buffer : ByteBuffer.allocateDirect(this.slabSize));
+        this.slabs.addLast(slab);
+        return slab;
+    }
+
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private final List<Entry> entries = new ArrayList<>();
+        private final List<WeakReference<Content>> views = new ArrayList<>();
+        private int used = 0;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void addView(Content content) {
+            // drop views which have since been collected, so the list stays in proportion
+            if (this.views.size() >= Math.max(16, this.entries.size() * 2)) {
+                this.views.removeIf(ref -> ref.get() == null);
+            }
+            this.views.add(new WeakReference<>(content));
+        }
+
+        void detachViews() {
+            for (WeakReference<Content> ref : this.views) {
+                Content content = ref.get();
+                if (content == null) {
+                    continue;
+                }
+                content.getLock().lock();
+                try {
+                    // appending to the content will already have moved it onto the heap
+                    if (content.isMapped()) {
+                        content.setContent(content.getContent());
+                    }
+                } finally {
+                    content.getLock().unlock();
+                }
+            }
+            this.views.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final Slab slab;
+        private final String contentType;
+        private final long expiry;
+        private final long lastModified;
+        private final boolean modifiable;
+        private final String authKey;
+        private final String eTag;
+        private final ByteBuffer content;
+
+        Entry(Content content, Slab slab, ByteBuffer region) {
+            this.key = content.getKey();
+            this.slab = slab;
+            this.contentType = content.getContentType();
+            this.expiry = content.getExpiry();
+            this.lastModified = content.getLastModified();
+            this.modifiable = content.isModifiable();
+            this.authKey = content.getAuthKey();
+            this.eTag = content.getETag();
+            this.content = region;
+        }
+    }
+
+}
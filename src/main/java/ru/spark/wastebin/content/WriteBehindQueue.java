@@ -0,0 +1,243 @@
+package ru.spark.wastebin.content;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batches content saves and writes them to storage in the background.
+ *
+ * <p>Repeated saves of the same key are coalesced, so only the latest version is written.
+ * A single flush task drains the queue in batches, so writes for the same key are never
+ * reordered, and the storage can make one durable flush per batch. A batch which fails
+ * to be written stays queued, and is tried again after a delay.</p>
+ */
+public class WriteBehindQueue {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(WriteBehindQueue.class);
+
+    /**
+     * How long to wait before trying a failed batch again
+     */
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    public enum Durability {
+        /** Leave flushing to the operating system */
+        NONE,
+        /**
+         * Flush once after each batch - segment storage flushes each segment written to,
+         * but file storage still has to flush every file, then the directory once
+         */
+        BATCH,
+        /** Flush after every write */
+        WRITE
+    }
+
+    /**
+     * Writes a batch of content to storage
+     */
+    interface Writer {
+        void write(List<Content> batch, boolean sync) throws IOException;
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Writer writer;
+    private final Durability durability;
+
+    // the maximum number of records to write in one batch
+    private final int maxBatchSize;
+
+    // how long to wait for more saves to arrive before flushing
+    private final long delayMillis;
+
+    /**
+     * The latest pending version of each key. Versions stay here until they've been
+     * written, so reads in the meantime don't go to storage and find older data.
+     */
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Keys with a pending version, in the order they were first queued
+     */
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+
+    /**
+     * If a flush task is scheduled or running
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder failedBatchCount = new LongAdder();
+
+    WriteBehindQueue(ScheduledExecutorService executor, Writer writer, Durability durability, int maxBatchSize, long delayMillis) {
+        this.executor = executor;
+        this.writer = writer;
+        this.durability = durability;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.delayMillis = delayMillis;
+    }
+
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    public long getBatchCount() {
+        return this.batchCount.sum();
+    }
+
+    public long getCoalescedCount() {
+        return this.coalescedCount.sum();
+    }
+
+    public long getFailedBatchCount() {
+        return this.failedBatchCount.sum();
+    }
+
+    /**
+     * Gets the version of the given key which is waiting to be written, if any.
+     *
+     * @param key the key
+     * @return the pending content, or null
+     */
+    public Content getPending(String key) {
+        Pending pending = this.pending.get(key);
+        return pending == null ? null : pending.content;
+    }
+
+    /**
+     * Queues the given content to be saved.
+     *
+     * @param content the content
+     */
+    public void enqueue(Content content) {
+        if (this.pending.put(content.getKey(), new Pending(content)) == null) {
+            this.order.add(content.getKey());
+        } else {
+            this.coalescedCount.increment();
+        }
+
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.executor.schedule(this::flush, this.delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down - the queue is drained on close
+                this.scheduled.set(false);
+            }
+        }
+    }
+
+    private void flush() {
+        boolean drained = false;
+        try {
+            drained = drain();
+        } catch (Throwable t) {
+            LOGGER.error("Exception thrown whilst flushing pending writes", t);
+        } finally {
+            this.scheduled.set(false);
+        }
+
+        // pick up anything queued after the last drain finished, or try a failed batch again
+        if (!this.order.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+            try {
+                if (drained) {
+                    this.executor.execute(this::flush);
+                } else {
+                    this.executor.schedule(this::flush, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (RejectedExecutionException e) {
+                this.scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes every pending save to storage.
+     *
+     * <p>Must only be called by the flush task, or once the executor has terminated.</p>
+     *
+     * @return false if a batch failed to be written, in which case it's left queued
+     */
+    boolean drain() {
+        List<Pending> batch = new ArrayList<>(Math.min(this.maxBatchSize, 64));
+        String key;
+        while ((key = this.order.poll()) != null) {
+            Pending pending = this.pending.get(key);
+            if (pending == null) {
+                continue;
+            }
+            batch.add(pending);
+            if (batch.size() >= this.maxBatchSize) {
+                if (!write(batch)) {
+                    return false;
+                }
+                batch.clear();
+            }
+        }
+        return batch.isEmpty() || write(batch);
+    }
+
+    private boolean write(List<Pending> batch) {
+        List<Content> contents = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            contents.add(pending.content);
+        }
+
+        try {
+            if (this.durability == Durability.WRITE) {
+                for (Content content : contents) {
+                    this.writer.write(Collections.singletonList(content), true);
+                }
+            } else {
+                this.writer.write(contents, this.durability == Durability.BATCH);
+            }
+        } catch (IOException e) {
+            // keep the versions pending, so reads still see them, and queue the keys again
+            LOGGER.error("Exception occurred saving a batch of " + contents.size() + ", will retry", e);
+            this.failedBatchCount.increment();
+            for (Pending pending : batch) {
+                this.order.add(pending.content.getKey());
+            }
+            return false;
+        }
+        this.batchCount.increment();
+
+        // if a key was saved again whilst it was being written, queue the newer version
+        for (Pending pending : batch) {
+            String key = pending.content.getKey();
+            if (!this.pending.remove(key, pending)) {
+                this.order.add(key);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A queued save. Content instances are updated in place, so each save gets its own
+     * entry to tell whether the key was saved again after it was taken for writing.
+     */
+    private static final class Pending {
+        private final Content content;
+
+        Pending(Content content) {
+            this.content = content;
+        }
+    }
+
+}
@@ -0,0 +1,903 @@
+package ru.spark.wastebin.content.storage;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.content.Content;
+import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.LatencyHistogram;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Moves content which hasn't been read from or written to the underlying storage for a
+ * while into pack files, recompressed with zstd at a high level.
+ *
+ * <p>Each pack starts with a dictionary trained on the content first archived into it,
+ * which every body in the pack is compressed against - so small pastes, which gain little
+ * from being compressed on their own, share what they have in common. Bodies are stored
+ * decompressed from gzip, and gzipped again when they're read.</p>
+ *
+ * <p>Reads check the underlying storage first, then the packs. Saving archived content
+ * writes it to the underlying storage again, leaving a dead entry in its pack, and packs
+ * are rewritten once dead entries take up enough of them. The keys in each tier are
+ * rebuilt on startup - a key stored in both is taken from the underlying storage, and
+ * otherwise the most recently archived entry wins.</p>
+ */
+public class ArchiveContentStorage implements ContentStorage {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(ArchiveContentStorage.class);
+
+    /**
+     * File extension used by pack files
+     */
+    private static final String PACK_EXTENSION = ".pack";
+
+    /**
+     * Pack file header magic & version
+     */
+    private static final int PACK_MAGIC = 0x57425041;
+    private static final int PACK_VERSION = 1;
+
+    /**
+     * Raw length recorded for bodies which weren't gzip, and are stored as they are
+     */
+    private static final int STORED_AS_IS = -1;
+
+    /**
+     * Length of the fields before the record in each entry - sequence, raw & original length
+     */
+    private static final int ENTRY_PREFIX_LENGTH = 8 + 4 + 4;
+
+    /**
+     * The fewest samples a dictionary is trained from - with fewer, packs have no dictionary
+     */
+    private static final int MIN_DICTIONARY_SAMPLES = 16;
+
+    /**
+     * Number of locks keys are spread across
+     */
+    private static final int KEY_LOCK_COUNT = 64;
+
+    /**
+     * The least time between updates to when a key was last used
+     */
+    private static final long TOUCH_INTERVAL_MILLIS = 1000;
+
+    // the storage holding content which isn't archived
+    private final ContentStorage storage;
+
+    // the path to store the packs in
+    private final Path packsPath;
+
+    // how long content goes unused for before it's archived
+    private final long archiveAfterMillis;
+
+    // the zstd compression level
+    private final int level;
+
+    // the size at which a pack stops being added to
+    private final long maxPackSize;
+
+    // the size of the dictionary trained for each pack, or 0 for none
+    private final int dictionarySize;
+
+    // the proportion of dead bytes at which a pack is rewritten
+    private final double compactionThreshold;
+
+    // the most keys archived by one maintenance run
+    private final int batchSize;
+
+    // the number of threads used to read existing packs
+    private final int scanThreads;
+
+    /**
+     * Keys held by the underlying storage, and when they were last used. The value is
+     * replaced on every use, so the archiver can tell if a key was used whilst it was
+     * being archived.
+     */
+    private final ConcurrentMap<String, Access> hot = new ConcurrentHashMap<>();
+
+    /**
+     * Index of archived key --> location of its entry
+     */
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+
+    /**
+     * All open packs, by id
+     */
+    private final ConcurrentSkipListMap<Integer, Pack> packs = new ConcurrentSkipListMap<>();
+
+    /**
+     * Lock held whilst updating the index & the sizes of the archive - never held during i/o
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Locks held whilst a key is written to or deleted from the underlying storage, by key,
+     * so the archiver can't delete a record saved whilst it was archiving the old one
+     */
+    private final Lock[] keyLocks = new Lock[KEY_LOCK_COUNT];
+
+    /**
+     * The pack new entries are added to, or null - only used by maintenance runs
+     */
+    private Pack activePack;
+
+    /**
+     * The sequence number of the last archived entry
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The size of live archived records in the underlying storage's layout, and in the packs
+     */
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong archivedBytes = new AtomicLong();
+
+    private final LongAdder archivedCount = new LongAdder();
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+    public ArchiveContentStorage(ContentStorage storage, Path packsPath, long archiveAfterMillis, int level, long maxPackSize, int dictionarySize, double compactionThreshold, int batchSize, int scanThreads) throws IOException {
+        this.storage = storage;
+        this.packsPath = packsPath;
+        this.archiveAfterMillis = archiveAfterMillis;
+        this.level = level;
+        this.maxPackSize = maxPackSize;
+        this.dictionarySize = dictionarySize;
+        this.compactionThreshold = compactionThreshold;
+        this.batchSize = batchSize;
+        this.scanThreads = scanThreads;
+        for (int i = 0; i < this.keyLocks.length; i++) {
+            this.keyLocks[i] = new ReentrantLock();
+        }
+
+        // make directories
+        Files.createDirectories(this.packsPath);
+
+        // rebuild the index from existing packs
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(this.packsPath)) {
+            stream.filter(p -> p.getFileName().toString().endsWith(PACK_EXTENSION)).forEach(paths::add);
+        }
+
+        List<Pack> opened = Collections.synchronizedList(new ArrayList<>());
+        Map<Pack, List<Location>> recovered = new ConcurrentHashMap<>();
+        ParallelScan.forEach(paths, this.scanThreads, path -> {
+            Pack pack = Pack.open(packId(path), path, this.level);
+            if (pack == null) {
+                LOGGER.warn("Deleting unreadable pack " + path.getFileName());
+                Files.delete(path);
+                return;
+            }
+            opened.add(pack);
+            recovered.put(pack, recover(pack));
+        });
+
+        for (Pack pack : opened) {
+            this.packs.put(pack.id, pack);
+            for (Location location : recovered.get(pack)) {
+                this.sequence.accumulateAndGet(location.sequence, Math::max);
+                Location existing = this.index.get(location.key);
+                if (existing == null || existing.sequence < location.sequence) {
+                    this.index.put(location.key, location);
+                    release(existing);
+                    retain(location);
+                } else {
+                    markDead(location);
+                }
+            }
+        }
+
+        if (!this.packs.isEmpty() && this.packs.lastEntry().getValue().size.get() < this.maxPackSize) {
+            this.activePack = this.packs.lastEntry().getValue();
+        }
+
+        LOGGER.info("Loaded " + this.index.size() + " archived records from " + this.packs.size() + " packs");
+    }
+
+    private static int packId(Path path) {
+        String fileName = path.getFileName().toString();
+        return Integer.parseInt(fileName.substring(0, fileName.length() - PACK_EXTENSION.length()));
+    }
+
+    public int getArchivedKeyCount() {
+        return this.index.size();
+    }
+
+    public int getPackCount() {
+        return this.packs.size();
+    }
+
+    public long getPackBytes() {
+        long bytes = 0;
+        for (Pack pack : this.packs.values()) {
+            bytes += pack.size.get();
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets how much smaller the live archived records are than they would be in the
+     * underlying storage.
+     *
+     * @return the bytes saved
+     */
+    public long getSavedBytes() {
+        return this.originalBytes.get() - this.archivedBytes.get();
+    }
+
+    public long getArchivedCount() {
+        return this.archivedCount.sum();
+    }
+
+    public LatencyHistogram getLoadLatency() {
+        return this.loadLatency;
+    }
+
+    private List<Location> recover(Pack pack) throws IOException {
+        List<Location> locations = new ArrayList<>();
+        long fileSize = pack.channel.size();
+        long offset = pack.dataOffset;
+
+        ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+        while (offset + 4 <= fileSize) {
+            lengthBuf.clear();
+            ContentRecords.readFully(pack.channel, lengthBuf, offset);
+            lengthBuf.flip();
+            int length = lengthBuf.getInt();
+            if (length <= ENTRY_PREFIX_LENGTH || offset + 4 + length > fileSize) {
+                break;
+            }
+
+            Entry entry;
+            try {
+                entry = Entry.read(readEntry(pack, offset + 4, Math.min(length, ENTRY_PREFIX_LENGTH + ContentRecords.HEADER_READ_LENGTH)), false);
+            } catch (EOFException e) {
+                entry = Entry.read(readEntry(pack, offset + 4, length), false);
+            }
+            locations.add(new Location(pack, offset + 4, length, entry));
+            offset += 4 + length;
+        }
+
+        if (offset != fileSize) {
+            LOGGER.warn("Truncating corrupted pack " + pack.path.getFileName() + " at offset " + offset);
+            pack.channel.truncate(offset);
+        }
+        pack.size.set(offset);
+        return locations;
+    }
+
+    private static byte[] readEntry(Pack pack, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ContentRecords.readFully(pack.channel, ByteBuffer.wrap(bytes), offset);
+        return bytes;
+    }
+
+    // must be called whilst holding the lock, other than on startup
+    private void retain(Location location) {
+        this.originalBytes.addAndGet(location.originalLength);
+        this.archivedBytes.addAndGet(4 + location.length);
+    }
+
+    // must be called whilst holding the lock, other than on startup
+    private void release(Location location) {
+        if (location != null) {
+            this.originalBytes.addAndGet(-location.originalLength);
+            this.archivedBytes.addAndGet(-(4 + location.length));
+            markDead(location);
+        }
+    }
+
+    private static void markDead(Location location) {
+        location.pack.deadBytes.addAndGet(4 + location.length);
+    }
+
+    private Lock keyLock(String key) {
+        return this.keyLocks[Math.floorMod(key.hashCode(), this.keyLocks.length)];
+    }
+
+    @Override
+    public void touch(String key) {
+        // called on every cache hit, so a key used within the last second is left as it is -
+        // far too recently for the archiver to be moving it
+        Access access = this.hot.get(key);
+        long now = System.currentTimeMillis();
+        if (access != null && now - access.time >= TOUCH_INTERVAL_MILLIS) {
+            this.hot.computeIfPresent(key, (k, a) -> new Access(now));
+        }
+    }
+
+    @Override
+    public Content load(String key) throws IOException {
+        Content content = this.storage.load(key);
+        if (content != null) {
+            touch(key);
+            return content;
+        }
+        return readArchived(key, false);
+    }
+
+    @Override
+    public Content loadMapped(String key, int minMappedLength) throws IOException {
+        Content content = this.storage.loadMapped(key, minMappedLength);
+        if (content != null) {
+            touch(key);
+            return content;
+        }
+        return readArchived(key, false);
+    }
+
+    @Override
+    public Content loadMeta(String key) throws IOException {
+        Content meta = this.storage.loadMeta(key);
+        return meta != null ? meta : readArchived(key, true);
+    }
+
+    private Content readArchived(String key, boolean metaOnly) throws IOException {
+        while (true) {
+            Location location = this.index.get(key);
+            if (location == null) {
+                return null;
+            }
+
+            long start = System.nanoTime();
+            try {
+                if (metaOnly && location.length > ENTRY_PREFIX_LENGTH + ContentRecords.HEADER_READ_LENGTH) {
+                    try {
+                        return Entry.read(readEntry(location.pack, location.offset, ENTRY_PREFIX_LENGTH + ContentRecords.HEADER_READ_LENGTH), false).content;
+                    } catch (EOFException e) {
+                        // header is longer than expected, fall through and read the whole entry
+                    }
+                }
+
+                Entry entry = Entry.read(readEntry(location.pack, location.offset, location.length), !metaOnly);
+                if (!metaOnly) {
+                    entry.restore(location.pack);
+                    this.loadLatency.recordSince(start);
+                }
+                return entry.content;
+            } catch (ClosedChannelException e) {
+                // the pack was compacted whilst we were reading - try again
+                if (this.index.get(key) == location) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void save(Content c) throws IOException {
+        saveAll(Collections.singletonList(c), false);
+    }
+
+    @Override
+    public void saveAll(List<Content> batch, boolean sync) throws IOException {
+        // locked in order, so batches sharing keys can't deadlock
+        SortedSet<Integer> locked = new TreeSet<>();
+        for (Content c : batch) {
+            locked.add(Math.floorMod(c.getKey().hashCode(), this.keyLocks.length));
+        }
+        for (int index : locked) {
+            this.keyLocks[index].lock();
+        }
+        try {
+            // mark the keys as used first, so they aren't picked to be archived again
+            Access access = new Access(System.currentTimeMillis());
+            for (Content c : batch) {
+                this.hot.put(c.getKey(), access);
+            }
+
+            this.storage.saveAll(batch, sync);
+
+            // the written records replace any archived ones
+            synchronized (this.lock) {
+                for (Content c : batch) {
+                    release(this.index.remove(c.getKey()));
+                }
+            }
+        } finally {
+            for (int index : locked) {
+                this.keyLocks[index].unlock();
+            }
+        }
+    }
+
+    @Override
+    public void append(Content content, int previousLength, boolean sync) throws IOException {
+        Lock keyLock = keyLock(content.getKey());
+        keyLock.lock();
+        try {
+            // an archived record can't be extended, so is replaced
+            if (this.index.containsKey(content.getKey())) {
+                saveAll(Collections.singletonList(content), sync);
+                return;
+            }
+            this.hot.put(content.getKey(), new Access(System.currentTimeMillis()));
+            this.storage.append(content, previousLength, sync);
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Lock keyLock = keyLock(key);
+        keyLock.lock();
+        try {
+            synchronized (this.lock) {
+                this.hot.remove(key);
+                release(this.index.remove(key));
+            }
+            this.storage.delete(key);
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    @Override
+    public void scan(ObjLongConsumer<String> consumer) throws IOException {
+        scanMeta(meta -> consumer.accept(meta.getKey(), meta.getExpiry()));
+    }
+
+    @Override
+    public void scanMeta(Consumer<Content> consumer) throws IOException {
+        // the last use of stored content isn't recorded, so it's taken to be the last modification
+        this.storage.scanMeta(meta -> {
+            synchronized (this.lock) {
+                // either written again since it was archived, or archived just before a crash
+                release(this.index.remove(meta.getKey()));
+            }
+            this.hot.put(meta.getKey(), new Access(meta.getLastModified()));
+            consumer.accept(meta);
+        });
+
+        ParallelScan.forEach(new ArrayList<>(this.index.keySet()), this.scanThreads, key -> {
+            Content meta = readArchived(key, true);
+            if (meta != null) {
+                consumer.accept(meta);
+            }
+        });
+    }
+
+    @Override
+    public void runMaintenance() {
+        try {
+            archive();
+        } catch (IOException e) {
+            LOGGER.error("Exception thrown whilst archiving content", e);
+        }
+
+        for (Pack pack : this.packs.values()) {
+            long size = pack.size.get() - pack.dataOffset;
+            if (size <= 0 || (double) pack.deadBytes.get() / size < this.compactionThreshold) {
+                continue;
+            }
+
+            try {
+                compact(pack);
+            } catch (IOException e) {
+                LOGGER.error("Exception thrown whilst compacting pack " + pack.path.getFileName(), e);
+            }
+        }
+
+        this.storage.runMaintenance();
+    }
+
+    // moves a batch of unused content into the active pack
+    private void archive() throws IOException {
+        long cutoff = System.currentTimeMillis() - this.archiveAfterMillis;
+        List<Map.Entry<String, Access>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Access> e : this.hot.entrySet()) {
+            if (e.getValue().time < cutoff) {
+                candidates.add(e);
+                if (candidates.size() >= this.batchSize) {
+                    break;
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        List<Content> contents = new ArrayList<>(candidates.size());
+        List<byte[]> raws = new ArrayList<>(candidates.size());
+        List<Access> accesses = new ArrayList<>(candidates.size());
+        for (Map.Entry<String, Access> candidate : candidates) {
+            Content content = this.storage.load(candidate.getKey());
+            if (content == null) {
+                this.hot.remove(candidate.getKey(), candidate.getValue());
+                continue;
+            }
+
+            byte[] raw;
+            try {
+                raw = content.getContentLength() == 0 ? Content.EMPTY_BYTES : Compression.decompress(content.getContentBuffer());
+            } catch (IOException e) {
+                raw = null;
+            }
+            contents.add(content);
+            raws.add(raw);
+            accesses.add(candidate.getValue());
+        }
+        if (contents.isEmpty()) {
+            return;
+        }
+
+        // write the entries, making sure they're durable before anything is deleted
+        byte[] dictionary = null;
+        List<Location> locations = new ArrayList<>(contents.size());
+        for (int i = 0; i < contents.size(); i++) {
+            if (this.activePack == null || this.activePack.size.get() >= this.maxPackSize) {
+                if (this.activePack != null) {
+                    this.activePack.channel.force(false);
+                }
+                if (dictionary == null) {
+                    dictionary = trainDictionary(raws);
+                }
+                this.activePack = createPack(dictionary);
+            }
+            locations.add(append(this.activePack, Entry.create(this.sequence.incrementAndGet(), contents.get(i), raws.get(i), this.activePack)));
+        }
+        this.activePack.channel.force(false);
+
+        // then swap each key over, unless it's been used in the meantime - holding the key's
+        // lock until the stored copy is deleted, so it can't be saved again in between
+        int archived = 0;
+        for (int i = 0; i < contents.size(); i++) {
+            String key = contents.get(i).getKey();
+            Location location = locations.get(i);
+            Lock keyLock = keyLock(key);
+            keyLock.lock();
+            try {
+                synchronized (this.lock) {
+                    if (!this.hot.remove(key, accesses.get(i))) {
+                        markDead(location);
+                        continue;
+                    }
+                    release(this.index.put(key, location));
+                    retain(location);
+                }
+                try {
+                    this.storage.delete(key);
+                } catch (IOException e) {
+                    // reads still find the stored copy first
+                    LOGGER.error("Exception occurred deleting archived '" + key + "'", e);
+                }
+            } finally {
+                keyLock.unlock();
+            }
+            archived++;
+        }
+
+        this.archivedCount.add(archived);
+        LOGGER.info("Archived " + archived + " keys into pack " + this.activePack.path.getFileName() + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private byte[] trainDictionary(List<byte[]> samples) {
+        if (this.dictionarySize <= 0) {
+            return Content.EMPTY_BYTES;
+        }
+
+        // zstd suggests around 100 times the dictionary size worth of samples
+        ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(Integer.MAX_VALUE - 8, this.dictionarySize * 100L), this.dictionarySize);
+        int count = 0;
+        for (byte[] sample : samples) {
+            if (sample != null && sample.length > 0 && trainer.addSample(sample)) {
+                count++;
+            }
+        }
+        if (count < MIN_DICTIONARY_SAMPLES) {
+            return Content.EMPTY_BYTES;
+        }
+
+        try {
+            return trainer.trainSamples();
+        } catch (ZstdException e) {
+            // not enough in common to train from
+            return Content.EMPTY_BYTES;
+        }
+    }
+
+    private Pack createPack(byte[] dictionary) throws IOException {
+        int id = this.packs.isEmpty() ? 1 : this.packs.lastKey() + 1;
+        Pack pack = Pack.create(id, this.packsPath.resolve(String.format("%08d", id) + PACK_EXTENSION), dictionary, this.level);
+        this.packs.put(id, pack);
+        return pack;
+    }
+
+    // appends an entry to the end of the pack
+    private static Location append(Pack pack, Entry entry) throws IOException {
+        byte[] bytes = entry.bytes;
+        long offset = pack.size.get();
+        ByteBuffer buf = ByteBuffer.allocate(4 + bytes.length);
+        buf.putInt(bytes.length).put(bytes).flip();
+
+        long position = offset;
+        while (buf.hasRemaining()) {
+            position += pack.channel.write(buf, position);
+        }
+        pack.size.set(position);
+        return new Location(pack, offset + 4, bytes.length, entry);
+    }
+
+    // copies the live entries of a pack into a new one, compressed against the same dictionary
+    private void compact(Pack pack) throws IOException {
+        long start = System.currentTimeMillis();
+        Pack target = createPack(pack.dictionary);
+
+        int moved = 0;
+        for (Location location : recover(pack)) {
+            if (!isLive(location)) {
+                continue;
+            }
+            Entry entry = new Entry(readEntry(pack, location.offset, location.length), location);
+            Location copy = append(target, entry);
+
+            synchronized (this.lock) {
+                Location current = this.index.get(location.key);
+                if (current != null && current.pack == pack && current.offset == location.offset) {
+                    this.index.put(location.key, copy);
+                    moved++;
+                } else {
+                    markDead(copy);
+                }
+            }
+        }
+        target.channel.force(false);
+        if (pack == this.activePack || target.size.get() < this.maxPackSize) {
+            this.activePack = target;
+        }
+
+        this.packs.remove(pack.id);
+        pack.close();
+        Files.deleteIfExists(pack.path);
+
+        LOGGER.info("Compacted pack " + pack.path.getFileName() + " (" + moved + " live entries moved) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // recovered locations are new instances, so are matched to the index by position
+    private boolean isLive(Location location) {
+        Location current = this.index.get(location.key);
+        return current != null && current.pack == location.pack && current.offset == location.offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this.lock) {
+            for (Pack pack : this.packs.values()) {
+                pack.close();
+            }
+        }
+        this.storage.close();
+    }
+
+    /**
+     * When a key in the underlying storage was last used
+     */
+    private static final class Access {
+        private final long time;
+
+        Access(long time) {
+            this.time = time;
+        }
+    }
+
+    /**
+     * A pack file
+     */
+    private static final class Pack {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final long dataOffset;
+
+        // the dictionary the entries are compressed against - empty if none
+        private final byte[] dictionary;
+        private final ZstdDictDecompress decompressDictionary;
+        private final int level;
+
+        // only created for packs which are being added to
+        private ZstdDictCompress compressDictionary;
+
+        /**
+         * The number of bytes written to the pack
+         */
+        private final AtomicLong size = new AtomicLong();
+
+        /**
+         * The number of bytes in the pack belonging to entries which are no longer live
+         */
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        private Pack(int id, Path path, FileChannel channel, byte[] dictionary, int level) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.dataOffset = 12 + dictionary.length;
+            this.dictionary = dictionary;
+            this.decompressDictionary = dictionary.length == 0 ? null : new ZstdDictDecompress(dictionary);
+            this.level = level;
+            this.size.set(this.dataOffset);
+        }
+
+        static Pack create(int id, Path path, byte[] dictionary, int level) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(12 + dictionary.length);
+            header.putInt(PACK_MAGIC).putInt(PACK_VERSION).putInt(dictionary.length).put(dictionary).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+            return new Pack(id, path, channel, dictionary, level);
+        }
+
+        // opens an existing pack for reading, or returns null if its header is unreadable
+        static Pack open(int id, Path path, int level) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(12);
+                ContentRecords.readFully(channel, header, 0);
+                header.flip();
+                if (header.getInt() != PACK_MAGIC || header.getInt() != PACK_VERSION) {
+                    channel.close();
+                    return null;
+                }
+                byte[] dictionary = new byte[header.getInt()];
+                ContentRecords.readFully(channel, ByteBuffer.wrap(dictionary), 12);
+                return new Pack(id, path, channel, dictionary, level);
+            } catch (EOFException e) {
+                channel.close();
+                return null;
+            }
+        }
+
+        byte[] compress(byte[] raw) {
+            if (this.dictionary.length == 0) {
+                return Zstd.compress(raw, this.level);
+            }
+            if (this.compressDictionary == null) {
+                this.compressDictionary = new ZstdDictCompress(this.dictionary, this.level);
+            }
+            return Zstd.compress(raw, this.compressDictionary);
+        }
+
+        byte[] decompress(byte[] compressed, int rawLength) {
+            return this.decompressDictionary != null ? Zstd.decompress(compressed, this.decompressDictionary, rawLength) : Zstd.decompress(compressed, rawLength);
+        }
+
+        void close() throws IOException {
+            this.channel.close();
+            if (this.decompressDictionary != null) {
+                this.decompressDictionary.close();
+            }
+            if (this.compressDictionary != null) {
+                this.compressDictionary.close();
+            }
+        }
+    }
+
+    /**
+     * An entry in a pack - a record in the usual layout, holding the recompressed body,
+     * after the fields needed to restore it
+     */
+    private static final class Entry {
+        private final byte[] bytes;
+        private final long sequence;
+        private final int rawLength;
+        private final int originalLength;
+        private final Content content;
+
+        private Entry(byte[] bytes, long sequence, int rawLength, int originalLength, Content content) {
+            this.bytes = bytes;
+            this.sequence = sequence;
+            this.rawLength = rawLength;
+            this.originalLength = originalLength;
+            this.content = content;
+        }
+
+        // an existing entry, copied as it is
+        Entry(byte[] bytes, Location location) {
+            this(bytes, location.sequence, 0, location.originalLength, null);
+        }
+
+        static Entry create(long sequence, Content content, byte[] raw, Pack pack) throws IOException {
+            int rawLength = raw == null ? STORED_AS_IS : raw.length;
+            byte[] body;
+            if (raw == null) {
+                body = content.getContent();
+            } else {
+                body = raw.length == 0 ? Content.EMPTY_BYTES : pack.compress(raw);
+            }
+
+            Content record = new Content(content.getKey(), content.getContentType(), content.getExpiry(), content.getLastModified(), content.isModifiable(), content.getAuthKey(), body);
+            record.setETag(content.getETag() != null ? content.getETag() : Content.computeETag(content.getContentBuffer()));
+            record.setContentHash(content.getContentHash());
+
+            int originalLength = ContentRecords.getHeaderLength(content) + content.getContentLength();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(ENTRY_PREFIX_LENGTH + 256 + body.length);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(sequence);
+                out.writeInt(rawLength);
+                out.writeInt(originalLength);
+                ContentRecords.write(out, record);
+            }
+            return new Entry(bytes.toByteArray(), sequence, rawLength, originalLength, record);
+        }
+
+        static Entry read(byte[] bytes, boolean readContent) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            long sequence = in.readLong();
+            int rawLength = in.readInt();
+            int originalLength = in.readInt();
+            Content content = ContentRecords.read(in, readContent);
+            return new Entry(bytes, sequence, rawLength, originalLength, content);
+        }
+
+        // replaces the stored body with the gzipped original
+        void restore(Pack pack) {
+            if (this.rawLength == STORED_AS_IS || this.content.getContentLength() == 0) {
+                return;
+            }
+            byte[] raw = pack.decompress(this.content.getContent(), this.rawLength);
+            this.content.setContent(Compression.compress(raw));
+        }
+    }
+
+    /**
+     * The location of an entry within a pack
+     */
+    private static final class Location {
+        private final Pack pack;
+        private final long offset;
+        private final int length;
+        private final String key;
+        private final long sequence;
+        private final int originalLength;
+
+        Location(Pack pack, long offset, int length, Entry entry) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.key = entry.content != null ? entry.content.getKey() : null;
+            this.sequence = entry.sequence;
+            this.originalLength = entry.originalLength;
+        }
+    }
+
+}
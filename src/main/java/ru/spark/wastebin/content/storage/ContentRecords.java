@@ -0,0 +1,229 @@
+package ru.spark.wastebin.content.storage;
+
+import ru.spark.wastebin.content.Content;
+
+import com.google.common.io.CountingInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes {@link Content} in the on-disk record layout.
+ */
+public final class ContentRecords {
+
+    /**
+     * The current record version
+     */
+    public static final int VERSION = 3;
+
+    /**
+     * Number of bytes initially read when only the record header is required
+     */
+    static final int HEADER_READ_LENGTH = 1024;
+
+    private ContentRecords() {
+    }
+
+    public static void write(DataOutput out, Content c) throws IOException {
+        ByteBuffer content = c.getContentBuffer();
+        writeHeader(out, c, content.remaining());
+
+        // write content
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(content.remaining(), 8192)];
+            while (content.hasRemaining()) {
+                int length = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Writes everything in the record up to (but not including) the content itself.
+     *
+     * @param out the output
+     * @param c the content
+     * @param contentLength the length of the content
+     * @throws IOException if an i/o error occurs
+     */
+    public static void writeHeader(DataOutput out, Content c, int contentLength) throws IOException {
+        // write version
+        out.writeInt(VERSION);
+
+        // write name
+        out.writeUTF(c.getKey());
+
+        // write content type
+        byte[] contextType = c.getContentType().getBytes();
+        out.writeInt(contextType.length);
+        out.write(contextType);
+
+        // write expiry time
+        out.writeLong(c.getExpiry());
+
+        // write last modified
+        out.writeLong(c.getLastModified());
+
+        // write modifiable state data
+        out.writeBoolean(c.isModifiable());
+        if (c.isModifiable()) {
+            out.writeUTF(c.getAuthKey());
+        }
+
+        // write entity tag
+        out.writeUTF(c.getETag() != null ? c.getETag() : Content.computeETag(c.getContentBuffer()));
+
+        // write content hash - empty unless the content is stored as a shared body
+        out.writeUTF(c.getContentHash() != null ? c.getContentHash() : "");
+
+        // write content length
+        out.writeInt(contentLength);
+    }
+
+    /**
+     * Gets the length of the header written by {@link #writeHeader(DataOutput, Content, int)}.
+     *
+     * @param c the content
+     * @return the header length
+     */
+    public static int getHeaderLength(Content c) {
+        String eTag = c.getETag() != null ? c.getETag() : Content.computeETag(c.getContentBuffer());
+        int length = 4 + utfLength(c.getKey()) + 4 + c.getContentType().getBytes().length + 8 + 8 + 1;
+        if (c.isModifiable()) {
+            length += utfLength(c.getAuthKey());
+        }
+        return length + utfLength(eTag) + utfLength(c.getContentHash() != null ? c.getContentHash() : "") + 4;
+    }
+
+    // the length of a string written by DataOutput.writeUTF
+    private static int utfLength(String s) {
+        int length = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            length += ch >= 0x0001 && ch <= 0x007f ? 1 : ch <= 0x07ff ? 2 : 3;
+        }
+        return length;
+    }
+
+    public static Content read(DataInput in, boolean readContent) throws IOException {
+        // read version
+        int version = in.readInt();
+
+        // read key
+        String key = in.readUTF();
+
+        // read content type
+        byte[] contentTypeBytes = new byte[in.readInt()];
+        in.readFully(contentTypeBytes);
+        String contentType = new String(contentTypeBytes);
+
+        // read expiry
+        long expiry = in.readLong();
+
+        // read last modified time
+        long lastModified = in.readLong();
+
+        // read modifiable state data
+        boolean modifiable = in.readBoolean();
+        String authKey = null;
+        if (modifiable) {
+            authKey = in.readUTF();
+        }
+
+        // read entity tag - older records are given one when their content is read
+        String eTag = version >= 2 ? in.readUTF() : null;
+
+        // read content hash
+        String contentHash = version >= 3 ? in.readUTF() : "";
+
+        if (!readContent) {
+            Content meta = new Content(key, contentType, expiry, lastModified, modifiable, authKey, Content.EMPTY_BYTES);
+            meta.setETag(eTag);
+            meta.setContentHash(contentHash.isEmpty() ? null : contentHash);
+            return meta;
+        }
+
+        // read content
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+
+        Content c = new Content(key, contentType, expiry, lastModified, modifiable, authKey, content);
+        c.setETag(eTag != null ? eTag : Content.computeETag(c.getContentBuffer()));
+        c.setContentHash(contentHash.isEmpty() ? null : contentHash);
+        return c;
+    }
+
+    /**
+     * Reads a record from the given channel, memory-mapping the content region rather than
+     * reading it onto the heap if it is at least {@code minMappedLength} bytes long.
+     *
+     * @param channel the channel
+     * @param position the position of the record within the channel
+     * @param length the length of the record
+     * @param minMappedLength the minimum content length to memory-map
+     * @return the content
+     * @throws IOException if an i/o error occurs
+     */
+    public static Content readMapped(FileChannel channel, long position, long length, int minMappedLength) throws IOException {
+        int headerLength = (int) Math.min(length, HEADER_READ_LENGTH);
+        while (true) {
+            byte[] header = new byte[headerLength];
+            readFully(channel, ByteBuffer.wrap(header), position);
+
+            CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(header));
+            DataInputStream in = new DataInputStream(counter);
+            Content meta;
+            int contentLength;
+            try {
+                meta = read(in, false);
+                contentLength = in.readInt();
+            } catch (EOFException e) {
+                if (headerLength == length) {
+                    throw e;
+                }
+                headerLength = (int) Math.min(length, headerLength * 2L);
+                continue;
+            }
+
+            long contentPosition = position + counter.getCount();
+            if (contentPosition + contentLength > position + length) {
+                throw new EOFException();
+            }
+
+            if (contentLength < minMappedLength) {
+                byte[] content = new byte[contentLength];
+                readFully(channel, ByteBuffer.wrap(content), contentPosition);
+                meta.setContent(content);
+            } else {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, contentPosition, contentLength);
+                meta.setContent(mapped);
+            }
+
+            if (meta.getETag() == null) {
+                meta.setETag(Content.computeETag(meta.getContentBuffer()));
+            }
+            return meta;
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + buf.position() - start);
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+}
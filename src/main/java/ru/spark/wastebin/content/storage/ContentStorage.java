@@ -0,0 +1,147 @@
+package ru.spark.wastebin.content.storage;
+
+import ru.spark.wastebin.content.Content;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A backend capable of persisting {@link Content} records.
+ */
+public interface ContentStorage extends AutoCloseable {
+
+    /**
+     * Loads the content stored for the given key.
+     *
+     * @param key the key
+     * @return the content, or null if nothing is stored for the key
+     * @throws IOException if an i/o error occurs
+     */
+    Content load(String key) throws IOException;
+
+    /**
+     * Loads the content stored for the given key, memory-mapping the content rather than
+     * reading it onto the heap if it is at least {@code minMappedLength} bytes long.
+     *
+     * @param key the key
+     * @param minMappedLength the minimum content length to memory-map
+     * @return the content, or null if nothing is stored for the key
+     * @throws IOException if an i/o error occurs
+     */
+    default Content loadMapped(String key, int minMappedLength) throws IOException {
+        return load(key);
+    }
+
+    /**
+     * Loads the metadata stored for the given key, without reading the content itself.
+     *
+     * @param key the key
+     * @return the content metadata, or null if nothing is stored for the key
+     * @throws IOException if an i/o error occurs
+     */
+    Content loadMeta(String key) throws IOException;
+
+    /**
+     * Saves the given content, replacing any existing record for the same key.
+     *
+     * @param content the content
+     * @throws IOException if an i/o error occurs
+     */
+    void save(Content content) throws IOException;
+
+    /**
+     * Saves a batch of content, replacing any existing records for the same keys.
+     *
+     * <p>If {@code sync} is true, the whole batch has been flushed to durable storage by
+     * the time this method returns. Storage should make a single flush per batch where
+     * it can, rather than one per record.</p>
+     *
+     * <p>A failure to save one record doesn't prevent the rest of the batch from being
+     * saved.</p>
+     *
+     * @param batch the content to save
+     * @param sync if the batch should be flushed to durable storage
+     * @throws IOException if an i/o error occurs saving any of the batch
+     */
+    void saveAll(List<Content> batch, boolean sync) throws IOException;
+
+    /**
+     * Saves content which has had data appended to it since it was last saved.
+     *
+     * <p>Storage which can extend a record in place writes only the appended data and an
+     * updated header, as long as the stored record is {@code previousLength} bytes long.
+     * Otherwise the whole record is saved.</p>
+     *
+     * @param content the content, including the appended data
+     * @param previousLength the length of the content before the append
+     * @param sync if the record should be flushed to durable storage
+     * @throws IOException if an i/o error occurs
+     */
+    default void append(Content content, int previousLength, boolean sync) throws IOException {
+        saveAll(Collections.singletonList(content), sync);
+    }
+
+    /**
+     * Deletes the record stored for the given key, if any.
+     *
+     * @param key the key
+     * @throws IOException if an i/o error occurs
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * Passes the key and expiry time of every stored record to the consumer.
+     *
+     * <p>Records which cannot be read are deleted. The consumer may be called from several
+     * threads at once.</p>
+     *
+     * @param consumer the consumer
+     * @throws IOException if an i/o error occurs
+     */
+    void scan(ObjLongConsumer<String> consumer) throws IOException;
+
+    /**
+     * Passes the metadata of every stored record to the consumer.
+     *
+     * <p>Records which cannot be read are deleted. The consumer may be called from several
+     * threads at once.</p>
+     *
+     * @param consumer the consumer
+     * @throws IOException if an i/o error occurs
+     */
+    default void scanMeta(Consumer<Content> consumer) throws IOException {
+        List<String> keys = Collections.synchronizedList(new ArrayList<>());
+        scan((key, expiry) -> keys.add(key));
+        for (String key : keys) {
+            Content meta = loadMeta(key);
+            if (meta != null) {
+                consumer.accept(meta);
+            }
+        }
+    }
+
+    /**
+     * Records that the content for the given key was used without being read from the
+     * storage, e.g. when it was served from a cache.
+     *
+     * @param key the key
+     */
+    default void touch(String key) {
+
+    }
+
+    /**
+     * Performs any background maintenance required by the storage.
+     */
+    default void runMaintenance() {
+
+    }
+
+    @Override
+    void close() throws IOException;
+
+}
@@ -0,0 +1,594 @@
+package ru.spark.wastebin.content.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.content.Content;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Stores each distinct body once, shared between all of the content uploaded with it.
+ *
+ * <p>Content with a {@link Content#getContentHash() content hash} is stored as a small
+ * record pointing at a body record, which is kept under a key derived from the hash and
+ * deleted when the last record referencing it is. Other content is passed straight
+ * through to the underlying storage.</p>
+ *
+ * <p>Reference counts, and the body each key references, are held in memory and rebuilt
+ * from the stored records on startup, which also removes any bodies left unreferenced by a
+ * crash. Records are written and deleted outside of the lock guarding the counts.</p>
+ */
+public class DeduplicatingContentStorage implements ContentStorage {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(DeduplicatingContentStorage.class);
+
+    /**
+     * Prefix of the keys bodies are stored under - never part of a valid content key
+     */
+    static final String BODY_KEY_PREFIX = "_";
+
+    /**
+     * Number of locks bodies are spread across
+     */
+    private static final int BODY_LOCK_COUNT = 64;
+
+    // the underlying storage
+    private final ContentStorage storage;
+
+    /**
+     * Lock guarding reference counting, which is never held during i/o
+     */
+    private final Lock referenceLock = new ReentrantLock();
+
+    /**
+     * Number of stored records referencing each body, by content hash
+     */
+    private final Map<String, Body> references = new HashMap<>();
+
+    /**
+     * The content hash each stored record references, by key - so overwriting or deleting
+     * a key releases the body it pointed at without reading the old record back. Only
+     * changed whilst holding the reference lock, but can be read without it.
+     */
+    private final Map<String, String> referenced = new ConcurrentHashMap<>();
+
+    /**
+     * The total number of stored records referencing a body
+     */
+    private int referenceCount;
+
+    /**
+     * Locks held while a body is written or deleted, by content hash, so a body deleted as
+     * its last reference goes is never deleted after being written again by a new one
+     */
+    private final Lock[] bodyLocks = new Lock[BODY_LOCK_COUNT];
+
+    /**
+     * Bodies currently held in memory, so content sharing a body shares the same bytes
+     */
+    private final Cache<String, ByteBuffer> resident = Caffeine.newBuilder().weakValues().build();
+
+    public DeduplicatingContentStorage(ContentStorage storage) {
+        this.storage = storage;
+        for (int i = 0; i < this.bodyLocks.length; i++) {
+            this.bodyLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private static String bodyKey(String contentHash) {
+        return BODY_KEY_PREFIX + contentHash;
+    }
+
+    private int bodyLockIndex(String contentHash) {
+        return Math.floorMod(contentHash.hashCode(), this.bodyLocks.length);
+    }
+
+    public ContentStorage getStorage() {
+        return this.storage;
+    }
+
+    public int getBodyCount() {
+        this.referenceLock.lock();
+        try {
+            return this.references.size();
+        } finally {
+            this.referenceLock.unlock();
+        }
+    }
+
+    public int getReferenceCount() {
+        this.referenceLock.lock();
+        try {
+            return this.referenceCount;
+        } finally {
+            this.referenceLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the body with the given content hash, if it's in memory or stored.
+     *
+     * @param contentHash the content hash
+     * @param minMappedLength the minimum length to memory-map, or -1 to always read onto the heap
+     * @return the body, or null if there isn't one
+     * @throws IOException if an i/o error occurs
+     */
+    public ByteBuffer findBody(String contentHash, int minMappedLength) throws IOException {
+        ByteBuffer body = this.resident.getIfPresent(contentHash);
+        if (body != null) {
+            return body;
+        }
+
+        this.referenceLock.lock();
+        try {
+            Body stored = this.references.get(contentHash);
+            if (stored == null || !stored.stored) {
+                return null;
+            }
+        } finally {
+            this.referenceLock.unlock();
+        }
+
+        ByteBuffer loaded = loadBody(contentHash, minMappedLength);
+        return loaded == null ? null : shareBody(contentHash, loaded);
+    }
+
+    private ByteBuffer loadBody(String contentHash, int minMappedLength) throws IOException {
+        Content stored = minMappedLength >= 0
+                ? this.storage.loadMapped(bodyKey(contentHash), minMappedLength)
+                : this.storage.load(bodyKey(contentHash));
+        return stored == null ? null : stored.getContentBuffer();
+    }
+
+    /**
+     * Registers a body as held in memory, unless another copy of it already is.
+     *
+     * @param contentHash the content hash
+     * @param body the body
+     * @return the copy of the body which should be used
+     */
+    public ByteBuffer shareBody(String contentHash, ByteBuffer body) {
+        ByteBuffer existing = this.resident.asMap().putIfAbsent(contentHash, body);
+        return existing != null ? existing : body;
+    }
+
+    private Content resolve(Content content, int minMappedLength) throws IOException {
+        if (content == null || content.getContentHash() == null) {
+            return content;
+        }
+
+        ByteBuffer body = this.resident.getIfPresent(content.getContentHash());
+        if (body == null) {
+            ByteBuffer loaded = loadBody(content.getContentHash(), minMappedLength);
+            if (loaded == null) {
+                LOGGER.warn("Missing shared body for '" + content.getKey() + "'");
+                return null;
+            }
+            body = shareBody(content.getContentHash(), loaded);
+        }
+
+        content.setContent(body);
+        return content;
+    }
+
+    @Override
+    public Content load(String key) throws IOException {
+        return resolve(this.storage.load(key), -1);
+    }
+
+    @Override
+    public Content loadMapped(String key, int minMappedLength) throws IOException {
+        return resolve(this.storage.loadMapped(key, minMappedLength), minMappedLength);
+    }
+
+    @Override
+    public Content loadMeta(String key) throws IOException {
+        return this.storage.loadMeta(key);
+    }
+
+    @Override
+    public void save(Content content) throws IOException {
+        saveAll(Collections.singletonList(content), false);
+    }
+
+    @Override
+    public void saveAll(List<Content> batch, boolean sync) throws IOException {
+        List<Update> updates = new ArrayList<>(batch.size());
+        SortedSet<Integer> locked = new TreeSet<>();
+
+        // count the new references up front, so a body can't be deleted while they're written
+        this.referenceLock.lock();
+        try {
+            for (Content c : batch) {
+                String contentHash = c.getContentHash();
+                String previousHash = contentHash != null
+                        ? this.referenced.put(c.getKey(), contentHash)
+                        : this.referenced.remove(c.getKey());
+                updates.add(new Update(c.getKey(), contentHash, previousHash));
+                if (contentHash == null) {
+                    continue;
+                }
+
+                Body body = this.references.computeIfAbsent(contentHash, h -> new Body());
+                body.count++;
+                this.referenceCount++;
+                if (!body.stored) {
+                    locked.add(bodyLockIndex(contentHash));
+                }
+            }
+        } finally {
+            this.referenceLock.unlock();
+        }
+
+        List<String> released = null;
+        IOException failure = null;
+
+        // locked in order, so batches sharing bodies can't deadlock
+        for (int index : locked) {
+            this.bodyLocks[index].lock();
+        }
+        try {
+            List<Content> records = new ArrayList<>(batch.size());
+            List<String> written = new ArrayList<>();
+            this.referenceLock.lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Content c = batch.get(i);
+                    String contentHash = c.getContentHash();
+                    if (contentHash == null) {
+                        updates.get(i).record = c;
+                        records.add(c);
+                        continue;
+                    }
+
+                    // a body not yet stored is written ahead of the record pointing at it
+                    Body body = this.references.get(contentHash);
+                    if (!body.stored && !written.contains(contentHash)) {
+                        Content stored = new Content(bodyKey(contentHash), "application/octet-stream", Long.MAX_VALUE, c.getLastModified(), false, null, c.getContentBuffer());
+                        stored.setETag(c.getETag());
+                        records.add(stored);
+                        written.add(contentHash);
+                    }
+
+                    Content reference = new Content(c.getKey(), c.getContentType(), c.getExpiry(), c.getLastModified(), c.isModifiable(), c.getAuthKey(), Content.EMPTY_BYTES);
+                    reference.setETag(c.getETag() != null ? c.getETag() : Content.computeETag(c.getContentBuffer()));
+                    reference.setContentHash(contentHash);
+                    updates.get(i).record = reference;
+                    records.add(reference);
+                }
+            } finally {
+                this.referenceLock.unlock();
+            }
+
+            try {
+                this.storage.saveAll(records, sync);
+            } catch (IOException e) {
+                failure = e;
+                released = rollback(updates, written);
+            }
+
+            if (failure == null) {
+                this.referenceLock.lock();
+                try {
+                    for (String contentHash : written) {
+                        this.references.get(contentHash).stored = true;
+                    }
+                } finally {
+                    this.referenceLock.unlock();
+                }
+            }
+        } finally {
+            for (int index : locked) {
+                this.bodyLocks[index].unlock();
+            }
+        }
+
+        if (released == null) {
+            released = new ArrayList<>();
+            for (Update update : updates) {
+                if (update.previousHash != null) {
+                    released.add(update.previousHash);
+                }
+            }
+        }
+        for (String contentHash : released) {
+            try {
+                release(contentHash);
+            } catch (IOException e) {
+                if (failure == null) {
+                    throw e;
+                }
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Undoes the references of a batch which failed to save, except for those whose records
+     * were written before the failure.
+     *
+     * @param updates the batch's updates, in order
+     * @param written the content hashes of the bodies the batch wrote
+     * @return the content hashes of the bodies to release - those replaced by the updates
+     *         which took effect, and those referenced by the ones which didn't
+     */
+    private List<String> rollback(List<Update> updates, List<String> written) {
+        // the underlying storage may have written some of the records, so check which did
+        List<String> stored = new ArrayList<>();
+        for (String contentHash : written) {
+            if (isStored(bodyKey(contentHash), contentHash, null)) {
+                stored.add(contentHash);
+            }
+        }
+
+        Map<String, List<Update>> byKey = new LinkedHashMap<>();
+        for (Update update : updates) {
+            byKey.computeIfAbsent(update.key, k -> new ArrayList<>()).add(update);
+        }
+
+        // the stored record is the latest update for the key which was written, if any was
+        Map<String, Integer> kept = new HashMap<>();
+        for (Map.Entry<String, List<Update>> e : byKey.entrySet()) {
+            List<Update> keyUpdates = e.getValue();
+            int last = keyUpdates.size() - 1;
+            while (last >= 0 && !isStored(e.getKey(), keyUpdates.get(last).contentHash, keyUpdates.get(last).record)) {
+                last--;
+            }
+            kept.put(e.getKey(), last);
+        }
+
+        List<String> released = new ArrayList<>();
+        this.referenceLock.lock();
+        try {
+            for (String contentHash : stored) {
+                this.references.get(contentHash).stored = true;
+            }
+
+            for (Map.Entry<String, List<Update>> e : byKey.entrySet()) {
+                List<Update> keyUpdates = e.getValue();
+                int last = kept.get(e.getKey());
+                for (Update update : keyUpdates.subList(0, last + 1)) {
+                    if (update.previousHash != null) {
+                        released.add(update.previousHash);
+                    }
+                }
+
+                String current = last >= 0 ? keyUpdates.get(last).contentHash : keyUpdates.get(0).previousHash;
+                if (current != null) {
+                    this.referenced.put(e.getKey(), current);
+                } else {
+                    this.referenced.remove(e.getKey());
+                }
+
+                // a body left unreferenced is deleted if it was written, or written again next time
+                for (Update update : keyUpdates.subList(last + 1, keyUpdates.size())) {
+                    if (update.contentHash != null) {
+                        released.add(update.contentHash);
+                    }
+                }
+            }
+        } finally {
+            this.referenceLock.unlock();
+        }
+        return released;
+    }
+
+    /**
+     * Gets if the stored record for a key matches the given record.
+     *
+     * <p>If the record can't be read, it's assumed to have been written - so its body is
+     * kept, at worst until the references are rebuilt on the next startup.</p>
+     *
+     * @param key the key
+     * @param contentHash the content hash the record references
+     * @param record the record, or null to only check that one exists
+     * @return if it is stored
+     */
+    private boolean isStored(String key, String contentHash, Content record) {
+        Content meta;
+        try {
+            meta = this.storage.loadMeta(key);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to check stored record for '" + key + "'", e);
+            return record != null;
+        }
+        if (meta == null || record == null) {
+            return meta != null;
+        }
+        return Objects.equals(meta.getContentHash(), contentHash)
+                && Objects.equals(meta.getETag(), record.getETag() != null ? record.getETag() : Content.computeETag(record.getContentBuffer()))
+                && meta.getLastModified() == record.getLastModified();
+    }
+
+    @Override
+    public void append(Content content, int previousLength, boolean sync) throws IOException {
+        // a shared body is never extended in place
+        if (content.getContentHash() != null) {
+            saveAll(Collections.singletonList(content), sync);
+            return;
+        }
+        this.storage.append(content, previousLength, sync);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        String contentHash;
+        this.referenceLock.lock();
+        try {
+            contentHash = this.referenced.remove(key);
+        } finally {
+            this.referenceLock.unlock();
+        }
+        this.storage.delete(key);
+        if (contentHash != null) {
+            release(contentHash);
+        }
+    }
+
+    private void release(String contentHash) throws IOException {
+        this.referenceLock.lock();
+        try {
+            Body body = this.references.get(contentHash);
+            if (body == null) {
+                return;
+            }
+            this.referenceCount--;
+            if (--body.count > 0) {
+                return;
+            }
+            this.references.remove(contentHash);
+        } finally {
+            this.referenceLock.unlock();
+        }
+
+        Lock lock = this.bodyLocks[bodyLockIndex(contentHash)];
+        lock.lock();
+        try {
+            // a new reference may have arrived since, in which case the body is kept
+            this.referenceLock.lock();
+            try {
+                if (this.references.containsKey(contentHash)) {
+                    return;
+                }
+            } finally {
+                this.referenceLock.unlock();
+            }
+            this.storage.delete(bodyKey(contentHash));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void scan(ObjLongConsumer<String> consumer) throws IOException {
+        scanMeta(meta -> consumer.accept(meta.getKey(), meta.getExpiry()));
+    }
+
+    @Override
+    public void scanMeta(Consumer<Content> consumer) throws IOException {
+        Set<String> stored = ConcurrentHashMap.newKeySet();
+        Map<String, String> counted = new ConcurrentHashMap<>();
+        this.storage.scanMeta(meta -> {
+            if (meta.getKey().startsWith(BODY_KEY_PREFIX)) {
+                stored.add(meta.getKey().substring(BODY_KEY_PREFIX.length()));
+                return;
+            }
+            if (meta.getContentHash() != null) {
+                counted.put(meta.getKey(), meta.getContentHash());
+            }
+            consumer.accept(meta);
+        });
+
+        List<String> orphaned = new ArrayList<>();
+        int missing = 0;
+        this.referenceLock.lock();
+        try {
+            this.references.clear();
+            this.referenced.clear();
+            this.referenceCount = 0;
+            for (Map.Entry<String, String> e : counted.entrySet()) {
+                if (stored.contains(e.getValue())) {
+                    Body body = this.references.computeIfAbsent(e.getValue(), h -> new Body());
+                    body.stored = true;
+                    body.count++;
+                    this.referenced.put(e.getKey(), e.getValue());
+                    this.referenceCount++;
+                } else {
+                    missing++;
+                }
+            }
+
+            for (String contentHash : stored) {
+                if (!this.references.containsKey(contentHash)) {
+                    orphaned.add(contentHash);
+                }
+            }
+        } finally {
+            this.referenceLock.unlock();
+        }
+
+        for (String contentHash : orphaned) {
+            this.storage.delete(bodyKey(contentHash));
+        }
+
+        if (getBodyCount() > 0 || !orphaned.isEmpty() || missing > 0) {
+            LOGGER.info("Tracking " + getBodyCount() + " shared bodies for " + getReferenceCount() + " keys"
+                    + (!orphaned.isEmpty() ? ", deleted " + orphaned.size() + " unreferenced bodies" : "")
+                    + (missing > 0 ? ", " + missing + " keys have missing bodies" : ""));
+        }
+    }
+
+    @Override
+    public void touch(String key) {
+        String contentHash = this.referenced.get(key);
+        this.storage.touch(key);
+        // the body is in use as long as any key referencing it is
+        if (contentHash != null) {
+            this.storage.touch(bodyKey(contentHash));
+        }
+    }
+
+    @Override
+    public void runMaintenance() {
+        this.storage.runMaintenance();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.storage.close();
+    }
+
+    /**
+     * A change to the body a key references, made by a batch being saved
+     */
+    private static final class Update {
+        private final String key;
+        private final String contentHash;
+        private final String previousHash;
+
+        // the record written for the change
+        private Content record;
+
+        Update(String key, String contentHash, String previousHash) {
+            this.key = key;
+            this.contentHash = contentHash;
+            this.previousHash = previousHash;
+        }
+    }
+
+    /**
+     * A body shared by stored content
+     */
+    private static final class Body {
+        // the number of stored records referencing the body
+        private int count;
+
+        // if the body has been written to the underlying storage
+        private boolean stored;
+    }
+
+}
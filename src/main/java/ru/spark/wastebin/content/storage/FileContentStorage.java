@@ -0,0 +1,220 @@
+package ru.spark.wastebin.content.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.content.Content;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores each piece of content in its own file.
+ */
+public class FileContentStorage implements ContentStorage {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(FileContentStorage.class);
+
+    /**
+     * File extension used for partially written files
+     */
+    private static final String TMP_EXTENSION = ".tmp";
+
+    // the path to store the content in
+    private final Path contentPath;
+
+    // the number of threads used to scan existing content
+    private final int scanThreads;
+
+    public FileContentStorage(Path contentPath) throws IOException {
+        this(contentPath, 1);
+    }
+
+    public FileContentStorage(Path contentPath, int scanThreads) throws IOException {
+        this.contentPath = contentPath;
+        this.scanThreads = scanThreads;
+
+        // make directories
+        Files.createDirectories(this.contentPath);
+    }
+
+    @Override
+    public Content load(String key) throws IOException {
+        return read(this.contentPath.resolve(key), true);
+    }
+
+    @Override
+    public Content loadMeta(String key) throws IOException {
+        return read(this.contentPath.resolve(key), false);
+    }
+
+    @Override
+    public Content loadMapped(String key, int minMappedLength) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.contentPath.resolve(key), StandardOpenOption.READ)) {
+            return ContentRecords.readMapped(channel, 0, channel.size(), minMappedLength);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static Content read(Path resolved, boolean readContent) throws IOException {
+        if (!Files.exists(resolved)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(resolved)))) {
+            return ContentRecords.read(in, readContent);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void save(Content c) throws IOException {
+        saveAll(Collections.singletonList(c), false);
+    }
+
+    @Override
+    public void saveAll(List<Content> batch, boolean sync) throws IOException {
+        IOException failure = null;
+
+        // write each record to a temporary file & move it into place, so existing files are
+        // never truncated underneath a reader which has them memory-mapped
+        List<Path> tmpPaths = new ArrayList<>(batch.size());
+        try {
+            for (Content c : batch) {
+                Path tmpPath = null;
+                try {
+                    tmpPath = Files.createTempFile(this.contentPath, c.getKey(), TMP_EXTENSION);
+                    writeFile(tmpPath, c, sync);
+                } catch (IOException e) {
+                    failure = addFailure(failure, c.getKey(), e);
+                    if (tmpPath != null) {
+                        Files.deleteIfExists(tmpPath);
+                        tmpPath = null;
+                    }
+                }
+                tmpPaths.add(tmpPath);
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                Path tmpPath = tmpPaths.get(i);
+                if (tmpPath == null) {
+                    continue;
+                }
+                try {
+                    Files.move(tmpPath, this.contentPath.resolve(batch.get(i).getKey()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    failure = addFailure(failure, batch.get(i).getKey(), e);
+                }
+            }
+
+            // one directory flush makes all of the renames durable
+            if (sync) {
+                try (FileChannel dir = FileChannel.open(this.contentPath, StandardOpenOption.READ)) {
+                    dir.force(true);
+                } catch (IOException e) {
+                    failure = addFailure(failure, this.contentPath.toString(), e);
+                }
+            }
+        } finally {
+            for (Path tmpPath : tmpPaths) {
+                if (tmpPath != null) {
+                    Files.deleteIfExists(tmpPath);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void writeFile(Path path, Content c, boolean sync) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+                ContentRecords.write(out, c);
+                out.flush();
+                if (sync) {
+                    channel.force(false);
+                }
+            }
+        }
+    }
+
+    private static IOException addFailure(IOException failure, String key, IOException e) {
+        if (failure == null) {
+            return new IOException("Unable to save '" + key + "'", e);
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(this.contentPath.resolve(key));
+    }
+
+    @Override
+    public void scan(ObjLongConsumer<String> consumer) throws IOException {
+        scanMeta(content -> consumer.accept(content.getKey(), content.getExpiry()));
+    }
+
+    @Override
+    public void scanMeta(Consumer<Content> consumer) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.list(this.contentPath)) {
+            // keys never contain a '.', so this skips partially written files and any others kept alongside content
+            paths = stream.filter(path -> path.getFileName().toString().indexOf('.') == -1).collect(Collectors.toList());
+        }
+
+        // reading the headers is the slow part, so spread it over several threads
+        ParallelScan.forEach(paths, this.scanThreads, path -> {
+            if (!Files.isRegularFile(path)) {
+                return;
+            }
+            String key = path.getFileName().toString();
+            try {
+                Content content = read(path, false);
+                if (content != null) {
+                    consumer.accept(content);
+                }
+            } catch (EOFException e) {
+                LOGGER.info("Corrupted: " + key);
+                try {
+                    Files.delete(path);
+                } catch (IOException e2) {
+                    // ignore
+                }
+            } catch (Exception e) {
+                LOGGER.error("Exception occurred loading meta for '" + key + "'", e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+}
@@ -0,0 +1,74 @@
+package ru.spark.wastebin.content.storage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a startup scan over a list of items from a short-lived pool of threads.
+ */
+final class ParallelScan {
+
+    private ParallelScan() {
+    }
+
+    interface Task<T> {
+        void accept(T item) throws IOException;
+    }
+
+    /**
+     * Passes every item to the task, using up to {@code threads} threads.
+     *
+     * @param items the items
+     * @param threads the maximum number of threads to use
+     * @param task the task, which must be thread-safe
+     * @throws IOException if the task throws for any item
+     */
+    static <T> void forEach(List<T> items, int threads, Task<T> task) throws IOException {
+        int workers = Math.min(threads, items.size());
+        if (workers <= 1) {
+            for (T item : items) {
+                task.accept(item);
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder().setNameFormat("wastebin-scan-%d").setDaemon(true).build());
+        try {
+            // workers pull the next item as they finish, so slow items don't hold up a whole chunk
+            AtomicInteger next = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                futures.add(pool.submit(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < items.size()) {
+                        task.accept(items.get(index));
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst scanning", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,533 @@
+package ru.spark.wastebin.content.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ru.spark.wastebin.content.Content;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Log-structured storage which appends records to large segment files.
+ *
+ * <p>Each entry in a segment is a length-prefixed record in the same layout used by
+ * {@link FileContentStorage}. Deletions are recorded by appending a tombstone. An in-memory
+ * index maps each key to the location of its latest record, and segments are compacted in
+ * the background once dead records take up most of their space.</p>
+ */
+public class SegmentContentStorage implements ContentStorage {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(SegmentContentStorage.class);
+
+    /**
+     * File extension used by segment files
+     */
+    private static final String SEGMENT_EXTENSION = ".seg";
+
+    /**
+     * Record version used to mark a tombstone
+     */
+    private static final int TOMBSTONE_VERSION = 0;
+
+    // the path to store the segments in
+    private final Path segmentsPath;
+
+    // the size at which the active segment is rolled over
+    private final long maxSegmentSize;
+
+    // the proportion of dead bytes at which a segment is compacted
+    private final double compactionThreshold;
+
+    // the number of threads used to read existing segments & records
+    private final int scanThreads;
+
+    /**
+     * Index of key --> location of the latest record
+     */
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+
+    /**
+     * All open segments, by id
+     */
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Lock held whilst appending to the active segment - not a monitor, as it's held over i/o
+     */
+    private final Lock writeLock = new ReentrantLock();
+
+    /**
+     * The segment currently being appended to
+     */
+    private Segment activeSegment;
+
+    public SegmentContentStorage(Path segmentsPath, long maxSegmentSize, double compactionThreshold) throws IOException {
+        this(segmentsPath, maxSegmentSize, compactionThreshold, 1);
+    }
+
+    public SegmentContentStorage(Path segmentsPath, long maxSegmentSize, double compactionThreshold, int scanThreads) throws IOException {
+        this.segmentsPath = segmentsPath;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.scanThreads = scanThreads;
+
+        // make directories
+        Files.createDirectories(this.segmentsPath);
+
+        // rebuild the index from existing segments
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(this.segmentsPath)) {
+            stream.filter(p -> p.getFileName().toString().endsWith(SEGMENT_EXTENSION)).forEach(paths::add);
+        }
+        paths.sort((a, b) -> Integer.compare(segmentId(a), segmentId(b)));
+
+        List<Segment> opened = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            Segment segment = new Segment(segmentId(path), path);
+            this.segments.put(segment.id, segment);
+            opened.add(segment);
+        }
+
+        // read the segments in parallel, then replay them in order so later records win
+        Map<Segment, List<Recovered>> recovered = new ConcurrentHashMap<>();
+        ParallelScan.forEach(opened, this.scanThreads, segment -> recovered.put(segment, recover(segment)));
+        for (Segment segment : opened) {
+            for (Recovered record : recovered.get(segment)) {
+                apply(segment, record);
+            }
+        }
+
+        if (this.segments.isEmpty() || this.segments.lastEntry().getValue().size.get() >= this.maxSegmentSize) {
+            this.activeSegment = createSegment();
+        } else {
+            this.activeSegment = this.segments.lastEntry().getValue();
+        }
+
+        LOGGER.info("Loaded " + this.index.size() + " records from " + this.segments.size() + " segments");
+    }
+
+    private static int segmentId(Path path) {
+        String fileName = path.getFileName().toString();
+        return Integer.parseInt(fileName.substring(0, fileName.length() - SEGMENT_EXTENSION.length()));
+    }
+
+    private Segment createSegment() throws IOException {
+        int id = this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1;
+        Segment segment = new Segment(id, this.segmentsPath.resolve(String.format("%08d", id) + SEGMENT_EXTENSION));
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+    private List<Recovered> recover(Segment segment) throws IOException {
+        List<Recovered> records = new ArrayList<>();
+        long fileSize = segment.channel.size();
+        long offset = 0;
+
+        ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+        while (offset + 4 <= fileSize) {
+            lengthBuf.clear();
+            ContentRecords.readFully(segment.channel, lengthBuf, offset);
+            lengthBuf.flip();
+            int length = lengthBuf.getInt();
+            if (length <= 0 || offset + 4 + length > fileSize) {
+                break;
+            }
+
+            byte[] header = readRecord(segment, offset + 4, Math.min(length, ContentRecords.HEADER_READ_LENGTH));
+            try {
+                records.add(readRecovered(segment, offset + 4, length, header));
+            } catch (EOFException e) {
+                records.add(readRecovered(segment, offset + 4, length, readRecord(segment, offset + 4, length)));
+            }
+            offset += 4 + length;
+        }
+
+        if (offset != fileSize) {
+            LOGGER.warn("Truncating corrupted segment " + segment.path.getFileName() + " at offset " + offset);
+            segment.channel.truncate(offset);
+        }
+        segment.size.set(offset);
+        return records;
+    }
+
+    private static Recovered readRecovered(Segment segment, long offset, int length, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readInt() == TOMBSTONE_VERSION) {
+            return new Recovered(in.readUTF(), null, length);
+        }
+
+        Content meta = ContentRecords.read(new DataInputStream(new ByteArrayInputStream(record)), false);
+        return new Recovered(meta.getKey(), new Location(segment, offset, length, meta.getExpiry()), length);
+    }
+
+    private void apply(Segment segment, Recovered record) {
+        if (record.location == null) {
+            markDead(this.index.remove(record.key));
+            segment.deadBytes.addAndGet(4 + record.length);
+            return;
+        }
+        markDead(this.index.put(record.key, record.location));
+    }
+
+    private static void markDead(Location location) {
+        if (location != null) {
+            location.segment.deadBytes.addAndGet(4 + location.length);
+        }
+    }
+
+    private static byte[] readRecord(Segment segment, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ContentRecords.readFully(segment.channel, ByteBuffer.wrap(bytes), offset);
+        return bytes;
+    }
+
+    @Override
+    public Content load(String key) throws IOException {
+        return read(key, false, -1);
+    }
+
+    @Override
+    public Content loadMeta(String key) throws IOException {
+        return read(key, true, -1);
+    }
+
+    @Override
+    public Content loadMapped(String key, int minMappedLength) throws IOException {
+        return read(key, false, minMappedLength);
+    }
+
+    private Content read(String key, boolean metaOnly, int minMappedLength) throws IOException {
+        while (true) {
+            Location location = this.index.get(key);
+            if (location == null) {
+                return null;
+            }
+
+            try {
+                if (minMappedLength >= 0) {
+                    return ContentRecords.readMapped(location.segment.channel, location.offset, location.length, minMappedLength);
+                }
+                if (metaOnly && location.length > ContentRecords.HEADER_READ_LENGTH) {
+                    try {
+                        return ContentRecords.read(new DataInputStream(new ByteArrayInputStream(readRecord(location.segment, location.offset, ContentRecords.HEADER_READ_LENGTH))), false);
+                    } catch (EOFException e) {
+                        // header is longer than expected, fall through and read the whole record
+                    }
+                }
+                byte[] record = readRecord(location.segment, location.offset, location.length);
+                return ContentRecords.read(new DataInputStream(new ByteArrayInputStream(record)), !metaOnly);
+            } catch (ClosedChannelException e) {
+                // the segment was compacted whilst we were reading - try again
+                if (this.index.get(key) == location) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void save(Content c) throws IOException {
+        saveAll(Collections.singletonList(c), false);
+    }
+
+    @Override
+    public void saveAll(List<Content> batch, boolean sync) throws IOException {
+        // the headers are serialized separately, so the content can be written straight from its buffer
+        ByteBuffer[] headers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            Content c = batch.get(i);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+            try (DataOutputStream out = new DataOutputStream(header)) {
+                ContentRecords.writeHeader(out, c, c.getContentLength());
+            }
+            headers[i] = ByteBuffer.wrap(header.toByteArray());
+        }
+
+        IOException failure = null;
+        this.writeLock.lock();
+        try {
+            Set<Segment> written = new HashSet<>();
+            for (int i = 0; i < batch.size(); i++) {
+                Content c = batch.get(i);
+                try {
+                    Location location = append(headers[i], c.getContentBuffer(), c.getExpiry());
+                    markDead(this.index.put(c.getKey(), location));
+                    written.add(location.segment);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = new IOException("Unable to save '" + c.getKey() + "'", e);
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+
+            // one flush per segment written to covers the whole batch
+            if (sync) {
+                for (Segment segment : written) {
+                    segment.channel.force(false);
+                }
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        this.writeLock.lock();
+        try {
+            Location existing = this.index.remove(key);
+            if (existing == null) {
+                return;
+            }
+            markDead(existing);
+            appendTombstone(key);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void appendTombstone(String key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(TOMBSTONE_VERSION);
+            out.writeUTF(key);
+        }
+        // tombstones are never live records
+        markDead(append(bytes.toByteArray(), 0));
+    }
+
+    // must be called whilst holding the write lock
+    private Location append(byte[] record, long expiry) throws IOException {
+        return append(ByteBuffer.wrap(record), ByteBuffer.allocate(0), expiry);
+    }
+
+    // must be called whilst holding the write lock
+    private Location append(ByteBuffer header, ByteBuffer content, long expiry) throws IOException {
+        int length = header.remaining() + content.remaining();
+
+        Segment segment = this.activeSegment;
+        if (segment.size.get() > 0 && segment.size.get() + 4 + length > this.maxSegmentSize) {
+            segment = this.activeSegment = createSegment();
+        }
+
+        long offset = segment.size.get();
+        ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+        lengthBuf.putInt(length).flip();
+
+        long position = offset;
+        for (ByteBuffer buf : new ByteBuffer[]{lengthBuf, header, content}) {
+            while (buf.hasRemaining()) {
+                position += segment.channel.write(buf, position);
+            }
+        }
+        segment.size.addAndGet(4 + length);
+
+        return new Location(segment, offset + 4, length, expiry);
+    }
+
+    @Override
+    public void scan(ObjLongConsumer<String> consumer) {
+        for (Map.Entry<String, Location> entry : this.index.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue().expiry);
+        }
+    }
+
+    @Override
+    public void scanMeta(Consumer<Content> consumer) throws IOException {
+        ParallelScan.forEach(new ArrayList<>(this.index.keySet()), this.scanThreads, key -> {
+            Content meta = loadMeta(key);
+            if (meta != null) {
+                consumer.accept(meta);
+            }
+        });
+    }
+
+    @Override
+    public void runMaintenance() {
+        for (Segment segment : this.segments.values()) {
+            if (segment == this.activeSegment) {
+                continue;
+            }
+
+            long size = segment.size.get();
+            if (size == 0 || (double) segment.deadBytes.get() / size < this.compactionThreshold) {
+                continue;
+            }
+
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                LOGGER.error("Exception thrown whilst compacting segment " + segment.path.getFileName(), e);
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long start = System.currentTimeMillis();
+        boolean oldest = this.segments.firstKey() == segment.id;
+
+        long offset = 0;
+        long size = segment.size.get();
+        int moved = 0;
+        Set<Segment> written = new HashSet<>();
+        while (offset < size) {
+            ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+            ContentRecords.readFully(segment.channel, lengthBuf, offset);
+            lengthBuf.flip();
+            int length = lengthBuf.getInt();
+            long recordOffset = offset + 4;
+            offset = recordOffset + length;
+
+            byte[] record = readRecord(segment, recordOffset, length);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            boolean tombstone = in.readInt() == TOMBSTONE_VERSION;
+            String key = in.readUTF();
+
+            this.writeLock.lock();
+            try {
+                if (tombstone) {
+                    // tombstones only need to be kept whilst older segments could still contain the key
+                    if (!oldest && !this.index.containsKey(key)) {
+                        Location copy = append(record, 0);
+                        markDead(copy);
+                        written.add(copy.segment);
+                    }
+                    continue;
+                }
+
+                Location location = this.index.get(key);
+                if (location != null && location.segment == segment && location.offset == recordOffset) {
+                    Location copy = append(record, location.expiry);
+                    this.index.put(key, copy);
+                    written.add(copy.segment);
+                    moved++;
+                }
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+
+        // the copies have to be durable before the only other copy is deleted - including any
+        // segment created to hold them, whose directory entry needs flushing too
+        for (Segment target : written) {
+            target.channel.force(false);
+        }
+        if (!written.isEmpty()) {
+            try (FileChannel dir = FileChannel.open(this.segmentsPath, StandardOpenOption.READ)) {
+                dir.force(true);
+            }
+        }
+
+        this.segments.remove(segment.id);
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+
+        LOGGER.info("Compacted segment " + segment.path.getFileName() + " (" + moved + " live records moved) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writeLock.lock();
+        try {
+            for (Segment segment : this.segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * A segment file
+     */
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+
+        /**
+         * The number of bytes written to the segment
+         */
+        private final AtomicLong size = new AtomicLong();
+
+        /**
+         * The number of bytes in the segment belonging to records which are no longer live
+         */
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * The location of a record within a segment
+     */
+    private static final class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final long expiry;
+
+        Location(Segment segment, long offset, int length, long expiry) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * A record read whilst recovering a segment
+     */
+    private static final class Recovered {
+        private final String key;
+
+        // the record's location, or null if it's a tombstone
+        private final Location location;
+        private final int length;
+
+        Recovered(String key, Location location, int length) {
+            this.key = key;
+            this.location = location;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package ru.spark.wastebin.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records an entry for each request handled by the server.
+ *
+ * <p>Handlers copy the request details into a pre-allocated event on a ring buffer, and
+ * a single consumer thread formats and writes them, so no string building or appender
+ * contention happens on the request path. If the ring buffer is full, entries are
+ * dropped rather than blocking the handler.</p>
+ *
+ * <p>In binary mode, the log file starts with the {@link #MAGIC} bytes and a version,
+ * followed by one record per entry: type (byte), timestamp (long), content length (int),
+ * previous content length (int), flags (byte), then the key, ip address, user agent,
+ * origin and content type as modified UTF-8 strings (empty if absent).</p>
+ */
+public class AccessLog implements AutoCloseable {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(AccessLog.class);
+
+    /**
+     * Binary log file header
+     */
+    public static final int MAGIC = 0x5742414C; // "WBAL"
+    public static final int VERSION = 1;
+
+    /**
+     * The longest string which will be written to the binary log
+     */
+    private static final int MAX_STRING_LENGTH = 1024;
+
+    /**
+     * Flag bit set when the uploaded content was already compressed
+     */
+    private static final int FLAG_COMPRESSED = 1;
+
+    public enum Mode {
+        /** No access log */
+        NONE,
+        /** Human readable entries, written via log4j */
+        TEXT,
+        /** Compact binary records, written to a separate file */
+        BINARY
+    }
+
+    public enum Type {
+        GET, POST, PUT, PATCH
+    }
+
+    // the fraction of requests to log
+    private final double sampleRate;
+
+    private final Disruptor<Event> disruptor;
+    private final RingBuffer<Event> ringBuffer;
+
+    // the binary output stream, or null if not in binary mode
+    private final DataOutputStream binaryOut;
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    public AccessLog(Mode mode, Path binaryPath, int ringSize, double sampleRate) throws IOException {
+        this.sampleRate = sampleRate;
+
+        if (mode == Mode.NONE) {
+            this.disruptor = null;
+            this.ringBuffer = null;
+            this.binaryOut = null;
+            return;
+        }
+
+        if (mode == Mode.BINARY) {
+            if (binaryPath.getParent() != null) {
+                Files.createDirectories(binaryPath.getParent());
+            }
+            boolean newFile = !Files.exists(binaryPath) || Files.size(binaryPath) == 0;
+            this.binaryOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(binaryPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024));
+            if (newFile) {
+                this.binaryOut.writeInt(MAGIC);
+                this.binaryOut.writeByte(VERSION);
+            }
+        } else {
+            this.binaryOut = null;
+        }
+
+        this.disruptor = new Disruptor<>(
+                Event::new,
+                Integer.highestOneBit(Math.max(64, ringSize - 1)) << 1,
+                new ThreadFactoryBuilder().setNameFormat("wastebin-access-log").setDaemon(true).build(),
+                ProducerType.MULTI,
+                new BlockingWaitStrategy()
+        );
+        this.disruptor.handleEventsWith(mode == Mode.BINARY ? new BinaryWriter() : new TextWriter());
+        this.ringBuffer = this.disruptor.start();
+    }
+
+    public long getDroppedCount() {
+        return this.droppedCount.sum();
+    }
+
+    /**
+     * Records a request.
+     *
+     * @param type the request type
+     * @param key the content key
+     * @param ipAddress the client ip address
+     * @param userAgent the client user agent, or null
+     * @param origin the request origin, or null
+     * @param contentType the content type, or null
+     * @param contentLength the length of the uploaded content, or 0
+     * @param previousContentLength the length of the content being replaced, or 0
+     * @param compressed if the uploaded content was already compressed
+     */
+    public void log(Type type, String key, String ipAddress, String userAgent, String origin, String contentType, int contentLength, int previousContentLength, boolean compressed) {
+        if (this.ringBuffer == null) {
+            return;
+        }
+        if (this.sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= this.sampleRate) {
+            return;
+        }
+
+        long sequence;
+        try {
+            sequence = this.ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            this.droppedCount.increment();
+            return;
+        }
+
+        try {
+            Event event = this.ringBuffer.get(sequence);
+            event.type = type;
+            event.timestamp = System.currentTimeMillis();
+            event.key = key;
+            event.ipAddress = ipAddress;
+            event.userAgent = userAgent;
+            event.origin = origin;
+            event.contentType = contentType;
+            event.contentLength = contentLength;
+            event.previousContentLength = previousContentLength;
+            event.compressed = compressed;
+        } finally {
+            this.ringBuffer.publish(sequence);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.disruptor == null) {
+            return;
+        }
+        try {
+            this.disruptor.shutdown(10, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.error("Timed out draining the access log", e);
+            this.disruptor.halt();
+        }
+        if (this.binaryOut != null) {
+            try {
+                this.binaryOut.close();
+            } catch (IOException e) {
+                LOGGER.error("Exception thrown whilst closing the access log", e);
+            }
+        }
+        long dropped = getDroppedCount();
+        if (dropped > 0) {
+            LOGGER.info("Dropped " + dropped + " access log entries");
+        }
+    }
+
+    /**
+     * A pre-allocated access log entry
+     */
+    private static final class Event {
+        private Type type;
+        private long timestamp;
+        private String key;
+        private String ipAddress;
+        private String userAgent;
+        private String origin;
+        private String contentType;
+        private int contentLength;
+        private int previousContentLength;
+        private boolean compressed;
+
+        void clear() {
+            this.key = null;
+            this.ipAddress = null;
+            this.userAgent = null;
+            this.origin = null;
+            this.contentType = null;
+        }
+    }
+
+    private static final class TextWriter implements EventHandler<Event> {
+        @Override
+        public void onEvent(Event event, long sequence, boolean endOfBatch) {
+            // keep the layout of the old synchronous log lines
+            StringBuilder sb = new StringBuilder(256);
+            sb.append('[').append(event.type == Type.GET ? "REQUEST" : event.type.name()).append("]\n");
+            sb.append("    key = ").append(event.key).append('\n');
+            if (event.type == Type.POST) {
+                sb.append("    type = ").append(event.contentType).append('\n');
+            } else if (event.type == Type.PUT) {
+                sb.append("    new type = ").append(event.contentType).append('\n');
+            }
+            sb.append("    user agent = ").append(event.userAgent).append('\n');
+            sb.append("    ip = ").append(event.ipAddress).append('\n');
+            if (event.origin != null) {
+                sb.append("    origin = ").append(event.origin).append('\n');
+            }
+            if (event.type == Type.POST) {
+                sb.append("    content size = ").append(String.format("%,d", event.contentLength / 1024)).append(" KB")
+                        .append(event.compressed ? " (compressed)" : "").append('\n');
+            } else if (event.type == Type.PUT) {
+                sb.append("    old content size = ").append(String.format("%,d", event.previousContentLength / 1024)).append(" KB\n");
+                sb.append("    new content size = ").append(String.format("%,d", event.contentLength / 1024)).append(" KB\n");
+            } else if (event.type == Type.PATCH) {
+                sb.append("    old content size = ").append(String.format("%,d", event.previousContentLength / 1024)).append(" KB\n");
+                sb.append("    appended size = ").append(String.format("%,d", event.contentLength / 1024)).append(" KB")
+                        .append(event.compressed ? " (compressed)" : "").append('\n');
+            }
+            event.clear();
+            LOGGER.info(sb.toString());
+        }
+    }
+
+    private final class BinaryWriter implements EventHandler<Event> {
+        @Override
+        public void onEvent(Event event, long sequence, boolean endOfBatch) {
+            DataOutputStream out = AccessLog.this.binaryOut;
+            try {
+                out.writeByte(event.type.ordinal());
+                out.writeLong(event.timestamp);
+                out.writeInt(event.contentLength);
+                out.writeInt(event.previousContentLength);
+                out.writeByte(event.compressed ? FLAG_COMPRESSED : 0);
+                writeString(out, event.key);
+                writeString(out, event.ipAddress);
+                writeString(out, event.userAgent);
+                writeString(out, event.origin);
+                writeString(out, event.contentType);
+                if (endOfBatch) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Exception thrown whilst writing the access log", e);
+            } finally {
+                event.clear();
+            }
+        }
+
+        private void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeUTF("");
+            } else if (s.length() > MAX_STRING_LENGTH) {
+                out.writeUTF(s.substring(0, MAX_STRING_LENGTH));
+            } else {
+                out.writeUTF(s);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+package ru.spark.wastebin.http;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.rapidoid.http.MediaType;
+import org.rapidoid.http.Req;
+import org.rapidoid.http.Resp;
+import ru.spark.wastebin.cluster.ClusterNode;
+import ru.spark.wastebin.cluster.HashRing;
+import ru.spark.wastebin.content.Content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static ru.spark.wastebin.http.WastebinServer.cors;
+
+/**
+ * Routes requests for keys owned by other nodes in the cluster, and proxies them there.
+ *
+ * <p>Requests are forwarded from a dedicated thread pool, so the server's i/o threads never
+ * wait on another node, over connections kept alive & pooled by {@link HttpURLConnection}.
+ * Only a bounded number of requests can queue for the pool - beyond that, clients are told
+ * to retry rather than left waiting on a slow node.</p>
+ */
+public final class ClusterProxy {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(ClusterProxy.class);
+
+    /**
+     * Header marking a request which has already been forwarded by another node
+     */
+    static final String FORWARDED_HEADER = "X-Wastebin-Forwarded";
+
+    /**
+     * Header carrying the method of a forwarded request which {@link HttpURLConnection} can't send
+     */
+    static final String METHOD_HEADER = "X-Wastebin-Method";
+
+    /**
+     * Header carrying the secret shared by the nodes, proving a request was forwarded by one
+     */
+    static final String SECRET_HEADER = "X-Wastebin-Secret";
+
+    /**
+     * Request headers passed on to the owning node
+     */
+    private static final String[] REQUEST_HEADERS = {
+            "Content-Type", "Content-Encoding", "Accept-Encoding", "If-None-Match", "If-Modified-Since",
+            "Modification-Key", "Allow-Modification", "User-Agent", "Origin", "Prefer"
+    };
+
+    /**
+     * Response headers passed back to the client - cors headers are added by this node
+     */
+    private static final String[] RESPONSE_HEADERS = {
+            "Content-Encoding", "ETag", "Last-Modified", "Cache-Control", "Vary", "Location", "Modification-Key", "Retry-After"
+    };
+
+    private final ClusterNode self;
+    private final HashRing ring;
+    private final ExecutorService executor;
+    private final int timeoutMillis;
+
+    // the secret shared by all nodes, or null to trust requests from any node's address instead
+    private final byte[] secret;
+
+    // the addresses of the other nodes, which forwarded requests are trusted from if there's no secret
+    private final Set<String> nodeAddresses = new HashSet<>();
+
+    private final LongAdder forwardedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public ClusterProxy(ClusterNode self, Collection<ClusterNode> nodes, int virtualNodes, int threads, int maxQueued, int timeoutMillis, String secret) {
+        this.self = self;
+        this.ring = new HashRing(nodes, virtualNodes);
+        this.timeoutMillis = timeoutMillis;
+        this.secret = secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+        for (ClusterNode node : nodes) {
+            String host = HostAndPort.fromString(node.getAddress()).getHost();
+            try {
+                for (InetAddress address : InetAddress.getAllByName(host)) {
+                    this.nodeAddresses.add(address.getHostAddress());
+                }
+            } catch (UnknownHostException e) {
+                LOGGER.warn("Unable to resolve the address of node " + node + ", requests forwarded by it will be refused");
+            }
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)),
+                new ThreadFactoryBuilder().setNameFormat("wastebin-proxy-%d").setDaemon(true).build()
+        );
+
+        // these are read once, when HttpURLConnection is first used
+        // keep enough idle connections to each node for every proxy thread
+        setPropertyIfAbsent("http.maxConnections", Integer.toString(threads));
+        // a post retried on a stale pooled connection could create the paste twice
+        setPropertyIfAbsent("sun.net.http.retryPost", "false");
+        // allow the client's Origin header to be passed on
+        setPropertyIfAbsent("sun.net.http.allowRestrictedHeaders", "true");
+    }
+
+    private static void setPropertyIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    public ClusterNode getSelf() {
+        return this.self;
+    }
+
+    public long getForwardedCount() {
+        return this.forwardedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    /**
+     * Gets if the given key is owned by this node.
+     *
+     * @param key the key
+     * @return if the key is local
+     */
+    public boolean isLocal(String key) {
+        return this.ring.getOwner(key) == this.self;
+    }
+
+    /**
+     * Gets the node a request for the given key should be forwarded to.
+     *
+     * <p>Requests which have already been forwarded are always handled locally, so nodes
+     * with differing configs can't pass a request back and forth.</p>
+     *
+     * @param req the request
+     * @param key the key
+     * @return the node to forward to, or null to handle the request locally
+     */
+    public ClusterNode route(Req req, String key) {
+        if (isForwarded(req)) {
+            return null;
+        }
+        ClusterNode owner = this.ring.getOwner(key);
+        return owner == this.self ? null : owner;
+    }
+
+    /**
+     * Gets if the request was forwarded by another node.
+     *
+     * <p>The forwarded header is only trusted alongside the cluster's shared secret, or if
+     * there isn't one, from the address of a node - otherwise any client could send it.</p>
+     *
+     * @param req the request
+     * @return if the request was forwarded
+     */
+    public boolean isForwarded(Req req) {
+        if (req.header(FORWARDED_HEADER, null) == null) {
+            return false;
+        }
+        if (this.secret == null) {
+            return this.nodeAddresses.contains(req.clientIpAddress());
+        }
+        String secret = req.header(SECRET_HEADER, null);
+        return secret != null && MessageDigest.isEqual(this.secret, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets if the request is a PATCH, forwarded by another node as a PUT.
+     *
+     * @param req the request
+     * @return if the request is a forwarded PATCH
+     */
+    public boolean isForwardedPatch(Req req) {
+        return "PATCH".equals(req.header(METHOD_HEADER, null)) && isForwarded(req);
+    }
+
+    /**
+     * Forwards the request to the given node, and completes the async response with the
+     * node's response.
+     *
+     * @param req the request
+     * @param node the node
+     * @param ipAddress the address of the client
+     * @param callback called once the response is complete
+     * @return if the request was queued to be forwarded, or false if too many already are
+     */
+    public boolean forward(Req req, ClusterNode node, String ipAddress, Runnable callback) {
+        try {
+            this.executor.execute(() -> {
+                try {
+                    proxy(req, node, ipAddress);
+                } catch (IOException e) {
+                    this.failedCount.increment();
+                    LOGGER.warn("Unable to forward request for " + req.path() + " to " + node + ": " + e);
+                    cors(req.response()).code(502).plain("Unable to reach node " + node.getId()).done();
+                } finally {
+                    callback.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.rejectedCount.increment();
+            return false;
+        }
+        this.forwardedCount.increment();
+        return true;
+    }
+
+    private void proxy(Req req, ClusterNode node, String ipAddress) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + node.getAddress() + req.path()).openConnection();
+        if (req.verb().equals("PATCH")) {
+            connection.setRequestMethod("PUT");
+            connection.setRequestProperty(METHOD_HEADER, "PATCH");
+        } else {
+            connection.setRequestMethod(req.verb());
+        }
+        connection.setConnectTimeout(this.timeoutMillis);
+        // a long-poll is held by the owning node for as long as the client asked
+        connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, this.timeoutMillis + GetHandler.getWaitMillis(req)));
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+
+        for (String name : REQUEST_HEADERS) {
+            String value = req.header(name, null);
+            if (value != null) {
+                connection.setRequestProperty(name, value);
+            }
+        }
+        // the owning node rate limits by the original client's address
+        connection.setRequestProperty("X-Real-IP", ipAddress);
+        connection.setRequestProperty(FORWARDED_HEADER, this.self.getId());
+        if (this.secret != null) {
+            connection.setRequestProperty(SECRET_HEADER, new String(this.secret, StandardCharsets.UTF_8));
+        }
+
+        byte[] body = req.body();
+        if (body != null && body.length > 0) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+
+        // the response has to be read to the end for the connection to be reused
+        int code = connection.getResponseCode();
+        byte[] responseBody;
+        try (InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            responseBody = in == null ? Content.EMPTY_BYTES : ByteStreams.toByteArray(in);
+        }
+
+        Resp resp = cors(req.response()).code(code);
+        for (String name : RESPONSE_HEADERS) {
+            String value = connection.getHeaderField(name);
+            if (value != null) {
+                resp.header(name, value);
+            }
+        }
+        String contentType = connection.getContentType();
+        if (contentType != null) {
+            resp.contentType(MediaType.of(contentType));
+        }
+        resp.body(responseBody).done();
+    }
+
+}
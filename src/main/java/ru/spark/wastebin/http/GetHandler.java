@@ -1,39 +1,67 @@
 package ru.spark.wastebin.http;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import com.google.common.base.Splitter;
 import org.rapidoid.http.MediaType;
 import org.rapidoid.http.Req;
 import org.rapidoid.http.ReqHandler;
 import org.rapidoid.http.Resp;
+import ru.spark.wastebin.cluster.ClusterNode;
+import ru.spark.wastebin.content.Content;
 import ru.spark.wastebin.content.ContentCache;
+import ru.spark.wastebin.util.AdmissionControl;
 import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.LatencyHistogram;
 import ru.spark.wastebin.util.RateLimiter;
 import ru.spark.wastebin.util.TokenGenerator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
 
 import static ru.spark.wastebin.http.WastebinServer.cors;
 
 public final class GetHandler implements ReqHandler {
 
-    private static final Logger LOGGER = LogManager.getLogger(GetHandler.class);
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
 
     private final WastebinServer server;
     private final RateLimiter rateLimiter;
     private final ContentCache contentCache;
-
-    public GetHandler(WastebinServer server, RateLimiter rateLimiter, ContentCache contentCache) {
+    private final AccessLog accessLog;
+    private final ClusterProxy cluster;
+    private final TailHub tail;
+    private final ResponseCache responseCache;
+    private final AdmissionControl admission;
+    private final LatencyHistogram latency;
+
+    public GetHandler(WastebinServer server, RateLimiter rateLimiter, ContentCache contentCache, AccessLog accessLog, ClusterProxy cluster, TailHub tail, ResponseCache responseCache, AdmissionControl admission, LatencyHistogram latency) {
         this.server = server;
         this.rateLimiter = rateLimiter;
         this.contentCache = contentCache;
+        this.accessLog = accessLog;
+        this.cluster = cluster;
+        this.tail = tail;
+        this.responseCache = responseCache;
+        this.admission = admission;
+        this.latency = latency;
     }
 
     @Override
     public Object execute(Req req) {
+        long start = System.nanoTime();
+        Object result = handle(req, start);
+        if (!req.isAsync()) {
+            this.latency.recordSince(start);
+        }
+        return result;
+    }
+
+    private Object handle(Req req, long start) {
         String path = req.path().substring(1);
         if (path.trim().isEmpty() || path.contains(".") || TokenGenerator.INVALID_TOKEN_PATTERN.matcher(path).find()) {
             return cors(req.response()).code(404).plain("Invalid path");
@@ -41,55 +69,185 @@ public final class GetHandler implements ReqHandler {
 
         String ipAddress = WastebinServer.getIpAddress(req);
 
+        // keys owned by another node are served (and rate limited) there
+        boolean stream = TailHub.isStreamRequest(req);
+        ClusterNode owner = this.cluster == null ? null : this.cluster.route(req, path);
+        if (owner != null && stream) {
+            // streams can't be proxied, so the client connects to the owning node itself
+            return cors(req.response()).code(307).header("Location", owner.getPublicUrl() + req.path()).body(Content.EMPTY_BYTES);
+        }
+        if (owner != null) {
+            if (!this.cluster.forward(req, owner, ipAddress, () -> this.latency.recordSince(start))) return WastebinServer.busy(req, this.admission);
+            return req.async();
+        }
+
         if (this.rateLimiter.check(ipAddress)) return cors(req.response()).code(429).plain("Rate limit exceeded");
+        if (!this.admission.tryAcquire(AdmissionControl.Operation.READ)) return WastebinServer.busy(req, this.admission);
 
         boolean supportsCompression = Compression.acceptsCompressed(req);
+        String ifNoneMatch = req.header("If-None-Match", null);
+        String ifModifiedSince = req.header("If-Modified-Since", null);
+        long waitMillis = getWaitMillis(req);
 
-        String origin = req.header("Origin", null);
-        LOGGER.info("[REQUEST]\n" +
-                "    key = " + path + "\n" +
-                "    user agent = " + req.header("User-Agent", "null") + "\n" +
-                //"    origin = " + ipAddress + (hostname != null ? " (" + hostname + ")" : "") + "\n" +
-                "    ip = " + ipAddress + "\n" +
-                (origin == null ? "" : "    origin = " + origin + "\n"));
+        this.accessLog.log(AccessLog.Type.GET, path, ipAddress, req.header("User-Agent", null), req.header("Origin", null), null, 0, 0, false);
 
         this.contentCache.get(path).whenCompleteAsync((content, throwable) -> {
-            if (throwable != null || content == null || content.getKey() == null || content.getContent().length == 0) {
-                cors(req.response()).code(404).plain("Invalid path").done();
-                return;
+            try {
+                if (throwable != null || content == null || content.getKey() == null || content.getContentLength() == 0) {
+                    cors(req.response()).code(404).plain("Invalid path").done();
+                    return;
+                }
+
+                if (stream) {
+                    if (!content.isModifiable()) {
+                        cors(req.response()).code(400).plain("Content can't change").done();
+                        return;
+                    }
+                    this.tail.stream(req, content);
+                    return;
+                }
+
+                respond(req, content, supportsCompression, ifNoneMatch, ifModifiedSince, waitMillis);
+            } finally {
+                this.admission.release(AdmissionControl.Operation.READ);
+                this.latency.recordSince(start);
             }
+        }, this.contentCache.getExecutor());
 
-            String lastModifiedTime = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(content.getLastModified()).atOffset(ZoneOffset.UTC));
-
-            Resp resp = cors(req.response()).code(200).header("Last-Modified", lastModifiedTime);
+        return req.async();
+    }
 
-            if (content.isModifiable()) {
-                resp.header("Cache-Control", "no-cache");
-            } else {
-                resp.header("Cache-Control", "public, max-age=86400");
+    private void respond(Req req, Content content, boolean supportsCompression, String ifNoneMatch, String ifModifiedSince, long waitMillis) {
+        // a long-poll for unchanged content waits for the next update, then responds as normal
+        if (waitMillis > 0 && content.isModifiable()) {
+            content.getLock().lock();
+            try {
+                if (isNotModified(ifNoneMatch, ifModifiedSince, eTag(content, supportsCompression), content.getLastModified())) {
+                    Runnable retry = () -> this.contentCache.getExecutor().execute(() -> respond(req, content, supportsCompression, ifNoneMatch, ifModifiedSince, 0));
+                    if (this.tail.await(content.getKey(), waitMillis, retry, retry)) {
+                        return;
+                    }
+                }
+            } finally {
+                content.getLock().unlock();
             }
+        }
+
+        // the version being served - read before the body, so a cached response is never newer than it claims
+        String contentETag = content.getETag();
+        long lastModified = content.getLastModified();
+
+        String eTag = eTag(content, supportsCompression);
+        boolean notModified = isNotModified(ifNoneMatch, ifModifiedSince, eTag, lastModified);
 
-            if (supportsCompression) {
-                resp.header("Content-Encoding", "gzip")
-                        .body(content.getContent())
-                        .contentType(MediaType.of(content.getContentType()))
-                        .done();
+        // popular content is written straight from a prepared response
+        boolean cacheable = !notModified && this.responseCache.isEnabled();
+        if (cacheable) {
+            ResponseCache.Prepared cached = this.responseCache.get(content, supportsCompression);
+            if (cached != null) {
+                cached.write(req);
                 return;
             }
+        }
+
+        String lastModifiedTime = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atOffset(ZoneOffset.UTC));
+        String cacheControl = content.isModifiable() ? "no-cache" : "public, max-age=86400";
+
+        Resp resp = cors(req.response())
+                .header("Last-Modified", lastModifiedTime)
+                .header("ETag", eTag)
+                .header("Vary", "Accept-Encoding")
+                .header("Cache-Control", cacheControl);
+
+        if (notModified) {
+            resp.code(304).body(Content.EMPTY_BYTES).done();
+            return;
+        }
 
-            byte[] uncompressed;
+        ByteBuffer body;
+        if (supportsCompression) {
+            body = content.getContentBuffer();
+        } else {
             try {
-                uncompressed = Compression.decompress(content.getContent());
+                body = ByteBuffer.wrap(this.contentCache.getDecompressed(content));
             } catch (IOException e) {
                 cors(req.response()).code(404).plain("Unable to uncompress data").done();
                 return;
             }
+        }
 
-            resp.body(uncompressed)
-                    .contentType(MediaType.of(content.getContentType()))
-                    .done();
-        });
+        MediaType contentType = MediaType.of(content.getContentType());
+        if (cacheable) {
+            ResponseCache.Prepared prepared = this.responseCache.put(content.getKey(), contentETag, lastModified, supportsCompression, contentType, new String[]{
+                    "Access-Control-Allow-Origin", "*",
+                    "Last-Modified", lastModifiedTime,
+                    "ETag", eTag,
+                    "Vary", "Accept-Encoding",
+                    "Cache-Control", cacheControl
+            }, body);
+            if (prepared != null) {
+                prepared.write(req);
+                return;
+            }
+        }
 
-        return req.async();
+        resp.code(200);
+        if (supportsCompression) {
+            resp.header("Content-Encoding", "gzip");
+        }
+        resp.body(body)
+                .contentType(contentType)
+                .done();
+    }
+
+    // the gzip and identity encodings are different representations, so need different strong tags
+    private static String eTag(Content content, boolean supportsCompression) {
+        return "\"" + content.getETag() + (supportsCompression ? "-gzip\"" : "\"");
+    }
+
+    /**
+     * Gets how long the client is prepared to wait for a change, from a {@code Prefer: wait=n}
+     * header.
+     *
+     * @param req the request
+     * @return the wait in milliseconds, or 0
+     */
+    static long getWaitMillis(Req req) {
+        String prefer = req.header("Prefer", null);
+        if (prefer == null) {
+            return 0;
+        }
+        for (String preference : COMMA_SPLITTER.split(prefer)) {
+            if (preference.startsWith("wait=")) {
+                try {
+                    return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(preference.substring(5).trim())));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String eTag, long lastModified) {
+        // If-None-Match takes precedence when both are present
+        if (ifNoneMatch != null) {
+            for (String tag : COMMA_SPLITTER.split(ifNoneMatch)) {
+                if (tag.equals("*") || tag.equals(eTag) || (tag.startsWith("W/") && tag.substring(2).equals(eTag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,270 @@
+package ru.spark.wastebin.http;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.rapidoid.http.MediaType;
+import org.rapidoid.http.Req;
+import org.rapidoid.http.ReqHandler;
+import ru.spark.wastebin.content.ContentCache;
+import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.content.KeyAllocator;
+import ru.spark.wastebin.content.KeyFilter;
+import ru.spark.wastebin.content.OffHeapContentCache;
+import ru.spark.wastebin.content.WriteBehindQueue;
+import ru.spark.wastebin.content.storage.ArchiveContentStorage;
+import ru.spark.wastebin.content.storage.DeduplicatingContentStorage;
+import ru.spark.wastebin.util.AdmissionControl;
+import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.CompressionEngine;
+import ru.spark.wastebin.util.LatencyHistogram;
+import ru.spark.wastebin.util.RateLimiter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
+
+/**
+ * Serves the server's metrics in the Prometheus text format.
+ */
+public final class MetricsHandler implements ReqHandler {
+
+    private static final MediaType PROMETHEUS_TEXT = MediaType.create("text/plain; version=0.0.4; charset=utf-8", "prom");
+
+    private final WastebinServer server;
+    private final ContentStorageHandler contentStorageHandler;
+    private final ContentCache contentCache;
+    private final Map<String, RateLimiter> rateLimiters;
+    private final Map<String, LatencyHistogram> handlerLatencies;
+    private final AccessLog accessLog;
+    private final ClusterProxy cluster;
+    private final KeyAllocator keyAllocator;
+    private final TailHub tail;
+    private final ResponseCache responseCache;
+    private final AdmissionControl admission;
+
+    public MetricsHandler(WastebinServer server, ContentStorageHandler contentStorageHandler, ContentCache contentCache, Map<String, RateLimiter> rateLimiters, Map<String, LatencyHistogram> handlerLatencies, AccessLog accessLog, ClusterProxy cluster, KeyAllocator keyAllocator, TailHub tail, ResponseCache responseCache, AdmissionControl admission) {
+        this.server = server;
+        this.contentStorageHandler = contentStorageHandler;
+        this.contentCache = contentCache;
+        this.rateLimiters = rateLimiters;
+        this.handlerLatencies = handlerLatencies;
+        this.accessLog = accessLog;
+        this.cluster = cluster;
+        this.keyAllocator = keyAllocator;
+        this.tail = tail;
+        this.responseCache = responseCache;
+        this.admission = admission;
+    }
+
+    @Override
+    public Object execute(Req req) {
+        StringBuilder sb = new StringBuilder(8192);
+
+        // startup
+        header(sb, "wastebin_startup_seconds", "gauge", "Time from the process starting to the server accepting requests");
+        sample(sb, "wastebin_startup_seconds", "", this.server.getStartupMillis() / 1e3);
+        header(sb, "wastebin_startup_scan_seconds", "gauge", "Time taken to scan existing content on startup");
+        sample(sb, "wastebin_startup_scan_seconds", "", this.contentStorageHandler.getScanNanos() / 1e9);
+        header(sb, "wastebin_startup_preloaded_keys", "gauge", "Hot keys loaded into the cache on startup");
+        sample(sb, "wastebin_startup_preloaded_keys", "", this.contentCache.getPreloadedCount());
+        long preloadNanos = this.contentCache.getPreloadNanos();
+        if (preloadNanos >= 0) {
+            header(sb, "wastebin_startup_preload_seconds", "gauge", "Time taken to preload hot keys on startup");
+            sample(sb, "wastebin_startup_preload_seconds", "", preloadNanos / 1e9);
+        }
+
+        // http handlers
+        header(sb, "wastebin_request_duration_seconds", "histogram", "Time taken to handle requests");
+        for (Map.Entry<String, LatencyHistogram> e : this.handlerLatencies.entrySet()) {
+            e.getValue().writePrometheus(sb, "wastebin_request_duration_seconds", "handler=\"" + e.getKey() + "\"");
+        }
+
+        header(sb, "wastebin_rate_limited_total", "counter", "Requests rejected by a rate limiter");
+        for (Map.Entry<String, RateLimiter> e : this.rateLimiters.entrySet()) {
+            sample(sb, "wastebin_rate_limited_total", "limiter=\"" + e.getKey() + "\"", e.getValue().getRejectedCount());
+        }
+
+        header(sb, "wastebin_access_log_dropped_total", "counter", "Access log entries dropped because the ring buffer was full");
+        sample(sb, "wastebin_access_log_dropped_total", "", this.accessLog.getDroppedCount());
+
+        header(sb, "wastebin_tail_subscribers", "gauge", "Clients streaming or long-polling changes to a paste");
+        sample(sb, "wastebin_tail_subscribers", "", this.tail.getSubscriberCount());
+        header(sb, "wastebin_tail_events_total", "counter", "Changes published to watching clients");
+        sample(sb, "wastebin_tail_events_total", "", this.tail.getEventCount());
+
+        if (this.cluster != null) {
+            String node = "node=\"" + this.cluster.getSelf().getId() + "\"";
+            header(sb, "wastebin_cluster_forwarded_total", "counter", "Requests forwarded to the node owning their key");
+            sample(sb, "wastebin_cluster_forwarded_total", node, this.cluster.getForwardedCount());
+            header(sb, "wastebin_cluster_forward_failures_total", "counter", "Forwarded requests which couldn't reach the owning node");
+            sample(sb, "wastebin_cluster_forward_failures_total", node, this.cluster.getFailedCount());
+            header(sb, "wastebin_cluster_forward_rejected_total", "counter", "Requests refused because too many were already waiting to be forwarded");
+            sample(sb, "wastebin_cluster_forward_rejected_total", node, this.cluster.getRejectedCount());
+        }
+
+        // caches
+        CacheStats contentStats = this.contentCache.getStats();
+        CacheStats variantStats = this.contentCache.getVariantStats();
+        CacheStats responseStats = this.responseCache.getStats();
+        writeCacheStat(sb, "wastebin_cache_hits_total", "Cache hits", contentStats.hitCount(), variantStats.hitCount(), responseStats.hitCount());
+        writeCacheStat(sb, "wastebin_cache_misses_total", "Cache misses", contentStats.missCount(), variantStats.missCount(), responseStats.missCount());
+        writeCacheStat(sb, "wastebin_cache_evictions_total", "Cache evictions", contentStats.evictionCount(), variantStats.evictionCount(), responseStats.evictionCount());
+        writeCacheStat(sb, "wastebin_cache_load_failures_total", "Failed cache loads", contentStats.loadFailureCount(), variantStats.loadFailureCount(), responseStats.loadFailureCount());
+        writeCacheStat(sb, "wastebin_cache_load_seconds_total", "Time spent loading cache entries", contentStats.totalLoadTime() / 1e9, variantStats.totalLoadTime() / 1e9, responseStats.totalLoadTime() / 1e9);
+
+        header(sb, "wastebin_cache_weighted_bytes", "gauge", "Estimated heap used by the content cache");
+        sample(sb, "wastebin_cache_weighted_bytes", "", this.contentCache.getWeightedSize());
+
+        OffHeapContentCache offHeapCache = this.contentCache.getOffHeapCache();
+        if (offHeapCache != null) {
+            header(sb, "wastebin_offheap_cache_hits_total", "counter", "Off-heap cache hits");
+            sample(sb, "wastebin_offheap_cache_hits_total", "", offHeapCache.getHitCount());
+            header(sb, "wastebin_offheap_cache_misses_total", "counter", "Off-heap cache misses");
+            sample(sb, "wastebin_offheap_cache_misses_total", "", offHeapCache.getMissCount());
+            header(sb, "wastebin_offheap_cache_evicted_slabs_total", "counter", "Off-heap cache slabs evicted");
+            sample(sb, "wastebin_offheap_cache_evicted_slabs_total", "", offHeapCache.getEvictedSlabCount());
+            header(sb, "wastebin_offheap_cache_entries", "gauge", "Entries in the off-heap cache");
+            sample(sb, "wastebin_offheap_cache_entries", "", offHeapCache.getEntryCount());
+            header(sb, "wastebin_offheap_cache_used_bytes", "gauge", "Bytes used by entries in the off-heap cache");
+            sample(sb, "wastebin_offheap_cache_used_bytes", "", offHeapCache.getUsedBytes());
+            header(sb, "wastebin_offheap_cache_allocated_bytes", "gauge", "Direct memory allocated by the off-heap cache");
+            sample(sb, "wastebin_offheap_cache_allocated_bytes", "", offHeapCache.getAllocatedBytes());
+        }
+
+        // storage
+        header(sb, "wastebin_storage_load_duration_seconds", "histogram", "Time taken to load content from storage");
+        this.contentStorageHandler.getLoadLatency().writePrometheus(sb, "wastebin_storage_load_duration_seconds", "");
+        header(sb, "wastebin_storage_save_duration_seconds", "histogram", "Time taken to write a batch of content to storage");
+        this.contentStorageHandler.getSaveLatency().writePrometheus(sb, "wastebin_storage_save_duration_seconds", "");
+        header(sb, "wastebin_storage_loaded_bytes_total", "counter", "Bytes of content loaded from storage");
+        sample(sb, "wastebin_storage_loaded_bytes_total", "", this.contentStorageHandler.getLoadBytes());
+        header(sb, "wastebin_storage_saved_bytes_total", "counter", "Bytes of content saved to storage");
+        sample(sb, "wastebin_storage_saved_bytes_total", "", this.contentStorageHandler.getSaveBytes());
+
+        WriteBehindQueue writeQueue = this.contentStorageHandler.getWriteQueue();
+        if (writeQueue != null) {
+            header(sb, "wastebin_write_queue_pending", "gauge", "Saves waiting to be written");
+            sample(sb, "wastebin_write_queue_pending", "", writeQueue.getPendingCount());
+            header(sb, "wastebin_write_queue_batches_total", "counter", "Batches written by the write-behind queue");
+            sample(sb, "wastebin_write_queue_batches_total", "", writeQueue.getBatchCount());
+            header(sb, "wastebin_write_queue_coalesced_total", "counter", "Saves replaced by a later save of the same key before being written");
+            sample(sb, "wastebin_write_queue_coalesced_total", "", writeQueue.getCoalescedCount());
+            header(sb, "wastebin_write_queue_failed_batches_total", "counter", "Batches which failed to be written, and were queued to be tried again");
+            sample(sb, "wastebin_write_queue_failed_batches_total", "", writeQueue.getFailedBatchCount());
+        }
+
+        DeduplicatingContentStorage storage = this.contentStorageHandler.getStorage();
+        header(sb, "wastebin_dedup_hits_total", "counter", "Uploads which reused the stored body of an identical upload");
+        sample(sb, "wastebin_dedup_hits_total", "", this.contentStorageHandler.getDeduplicatedCount());
+        header(sb, "wastebin_dedup_bodies", "gauge", "Distinct bodies shared by stored content");
+        sample(sb, "wastebin_dedup_bodies", "", storage.getBodyCount());
+        header(sb, "wastebin_dedup_references", "gauge", "Stored keys pointing at a shared body");
+        sample(sb, "wastebin_dedup_references", "", storage.getReferenceCount());
+
+        if (storage.getStorage() instanceof ArchiveContentStorage) {
+            ArchiveContentStorage archive = (ArchiveContentStorage) storage.getStorage();
+            header(sb, "wastebin_archive_keys", "gauge", "Keys held in archive packs");
+            sample(sb, "wastebin_archive_keys", "", archive.getArchivedKeyCount());
+            header(sb, "wastebin_archive_packs", "gauge", "Archive pack files");
+            sample(sb, "wastebin_archive_packs", "", archive.getPackCount());
+            header(sb, "wastebin_archive_pack_bytes", "gauge", "Size of the archive pack files, including dead entries");
+            sample(sb, "wastebin_archive_pack_bytes", "", archive.getPackBytes());
+            header(sb, "wastebin_archive_saved_bytes", "gauge", "Bytes saved by recompressing archived content, compared to storing it as it was");
+            sample(sb, "wastebin_archive_saved_bytes", "", archive.getSavedBytes());
+            header(sb, "wastebin_archive_moved_total", "counter", "Keys moved into archive packs");
+            sample(sb, "wastebin_archive_moved_total", "", archive.getArchivedCount());
+            header(sb, "wastebin_archive_load_duration_seconds", "histogram", "Time taken to read & recompress content from an archive pack");
+            archive.getLoadLatency().writePrometheus(sb, "wastebin_archive_load_duration_seconds", "");
+        }
+
+        header(sb, "wastebin_key_length", "gauge", "Length of newly allocated keys");
+        sample(sb, "wastebin_key_length", "", this.keyAllocator.getLength());
+        header(sb, "wastebin_key_collisions_total", "counter", "Generated keys which were already in use");
+        sample(sb, "wastebin_key_collisions_total", "", this.keyAllocator.getCollisionCount());
+
+        KeyFilter keyFilter = this.contentStorageHandler.getKeyFilter();
+        if (keyFilter != null) {
+            header(sb, "wastebin_key_filter_rejected_total", "counter", "Lookups for keys which don't exist answered by the key filter");
+            sample(sb, "wastebin_key_filter_rejected_total", "", keyFilter.getRejectedCount());
+            header(sb, "wastebin_key_filter_keys", "gauge", "Keys held by the key filter");
+            sample(sb, "wastebin_key_filter_keys", "", keyFilter.size());
+            header(sb, "wastebin_key_filter_bytes", "gauge", "Memory used by the key filter");
+            sample(sb, "wastebin_key_filter_bytes", "", keyFilter.getMemoryBytes());
+        }
+
+        header(sb, "wastebin_invalidation_duration_seconds", "histogram", "Time taken by invalidation runs");
+        this.contentStorageHandler.getInvalidationLatency().writePrometheus(sb, "wastebin_invalidation_duration_seconds", "");
+        header(sb, "wastebin_expired_total", "counter", "Keys expired by invalidation runs");
+        sample(sb, "wastebin_expired_total", "", this.contentStorageHandler.getExpiredCount());
+        header(sb, "wastebin_last_expired_batch_size", "gauge", "Keys expired by the last invalidation run");
+        sample(sb, "wastebin_last_expired_batch_size", "", this.contentStorageHandler.getLastExpiredBatchSize());
+
+        // executor
+        if (this.contentStorageHandler.getExecutor() instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) this.contentStorageHandler.getExecutor();
+            header(sb, "wastebin_executor_queue_depth", "gauge", "Tasks waiting for an i/o thread");
+            sample(sb, "wastebin_executor_queue_depth", "", executor.getQueue().size());
+            header(sb, "wastebin_executor_active_threads", "gauge", "I/O threads running a task");
+            sample(sb, "wastebin_executor_active_threads", "", executor.getActiveCount());
+        }
+
+        // admission control
+        header(sb, "wastebin_admission_queue_depth", "gauge", "I/O work queued or running for each operation, including writes waiting to be flushed");
+        writeAdmissionStat(sb, "wastebin_admission_queue_depth", this.admission::getDepth);
+        header(sb, "wastebin_admission_queue_limit", "gauge", "Queue depth at which requests are refused, or 0 if unlimited");
+        writeAdmissionStat(sb, "wastebin_admission_queue_limit", this.admission::getLimit);
+        header(sb, "wastebin_admission_rejected_total", "counter", "Requests refused with a 503 because the queue for the operation was full");
+        writeAdmissionStat(sb, "wastebin_admission_rejected_total", this.admission::getRejectedCount);
+        header(sb, "wastebin_background_deferred_total", "counter", "Background runs which waited for queued reads to drain");
+        sample(sb, "wastebin_background_deferred_total", "", this.admission.getDeferredCount());
+        header(sb, "wastebin_background_deferred_seconds_total", "counter", "Time background runs spent waiting for queued reads to drain");
+        sample(sb, "wastebin_background_deferred_seconds_total", "", this.admission.getDeferredNanos() / 1e9);
+
+        // compression
+        CompressionEngine engine = Compression.getEngine();
+        header(sb, "wastebin_compress_total", "counter", "Payloads compressed");
+        sample(sb, "wastebin_compress_total", "", engine.getCompressCount());
+        header(sb, "wastebin_compress_seconds_total", "counter", "Time spent compressing");
+        sample(sb, "wastebin_compress_seconds_total", "", engine.getCompressNanos() / 1e9);
+        header(sb, "wastebin_compress_bytes_in_total", "counter", "Bytes passed to the compressor");
+        sample(sb, "wastebin_compress_bytes_in_total", "", engine.getCompressBytesIn());
+        header(sb, "wastebin_compress_bytes_out_total", "counter", "Bytes produced by the compressor");
+        sample(sb, "wastebin_compress_bytes_out_total", "", engine.getCompressBytesOut());
+        header(sb, "wastebin_decompress_total", "counter", "Payloads decompressed");
+        sample(sb, "wastebin_decompress_total", "", engine.getDecompressCount());
+        header(sb, "wastebin_decompress_seconds_total", "counter", "Time spent decompressing");
+        sample(sb, "wastebin_decompress_seconds_total", "", engine.getDecompressNanos() / 1e9);
+
+        return req.response().code(200)
+                .contentType(PROMETHEUS_TEXT)
+                .header("Cache-Control", "no-cache")
+                .body(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeCacheStat(StringBuilder sb, String name, String help, Number content, Number variant, Number response) {
+        header(sb, name, "counter", help);
+        sample(sb, name, "cache=\"content\"", content);
+        sample(sb, name, "cache=\"variant\"", variant);
+        sample(sb, name, "cache=\"response\"", response);
+    }
+
+    private static void writeAdmissionStat(StringBuilder sb, String name, Function<AdmissionControl.Operation, Number> stat) {
+        for (AdmissionControl.Operation operation : AdmissionControl.Operation.values()) {
+            sample(sb, name, "operation=\"" + operation.name().toLowerCase() + "\"", stat.apply(operation));
+        }
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, Number value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+}
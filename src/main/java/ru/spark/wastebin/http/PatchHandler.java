@@ -0,0 +1,178 @@
+package ru.spark.wastebin.http;
+
+import org.rapidoid.http.Req;
+import org.rapidoid.http.ReqHandler;
+import ru.spark.wastebin.cluster.ClusterNode;
+import ru.spark.wastebin.content.Content;
+import ru.spark.wastebin.content.ContentCache;
+import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.util.AdmissionControl;
+import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.LatencyHistogram;
+import ru.spark.wastebin.util.RateLimiter;
+import ru.spark.wastebin.util.TokenGenerator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Appends the request body to a modifiable paste.
+ *
+ * <p>The body is stored as another gzip member after the existing content, so nothing
+ * already stored is recompressed or (where the storage allows) rewritten.</p>
+ */
+public final class PatchHandler implements ReqHandler {
+
+    private final WastebinServer server;
+    private final RateLimiter rateLimiter;
+
+    private final ContentStorageHandler contentStorageHandler;
+    private final ContentCache contentCache;
+    private final long maxContentLength;
+    private final long lifetimeMillis;
+    private final AccessLog accessLog;
+    private final ClusterProxy cluster;
+    private final TailHub tail;
+    private final ResponseCache responseCache;
+    private final AdmissionControl admission;
+    private final LatencyHistogram latency;
+
+    public PatchHandler(WastebinServer server, RateLimiter rateLimiter, ContentStorageHandler contentStorageHandler, ContentCache contentCache, long maxContentLength, long lifetimeMillis, AccessLog accessLog, ClusterProxy cluster, TailHub tail, ResponseCache responseCache, AdmissionControl admission, LatencyHistogram latency) {
+        this.server = server;
+        this.rateLimiter = rateLimiter;
+        this.contentStorageHandler = contentStorageHandler;
+        this.contentCache = contentCache;
+        this.maxContentLength = maxContentLength;
+        this.lifetimeMillis = lifetimeMillis;
+        this.accessLog = accessLog;
+        this.cluster = cluster;
+        this.tail = tail;
+        this.responseCache = responseCache;
+        this.admission = admission;
+        this.latency = latency;
+    }
+
+    @Override
+    public Object execute(Req req) {
+        long start = System.nanoTime();
+        Object result = handle(req, start);
+        if (!req.isAsync()) {
+            this.latency.recordSince(start);
+        }
+        return result;
+    }
+
+    private Object handle(Req req, long start) {
+        String path = req.path().substring(1);
+        if (path.trim().isEmpty() || path.contains(".") || TokenGenerator.INVALID_TOKEN_PATTERN.matcher(path).find()) {
+            return WastebinServer.cors(req.response()).code(404).plain("Invalid path");
+        }
+
+        String ipAddress = WastebinServer.getIpAddress(req);
+
+        // keys owned by another node are appended to (and rate limited) there
+        ClusterNode owner = this.cluster == null ? null : this.cluster.route(req, path);
+        if (owner != null) {
+            if (!this.cluster.forward(req, owner, ipAddress, () -> this.latency.recordSince(start))) return WastebinServer.busy(req, this.admission);
+            return req.async();
+        }
+
+        // reject oversized uploads before doing anything with the body
+        if (WastebinServer.exceedsContentLength(req, this.maxContentLength))
+            return WastebinServer.cors(req.response()).code(413).plain("Content too large");
+
+        byte[] body = req.body();
+
+        if (body.length == 0) return WastebinServer.cors(req.response()).code(400).plain("Missing content");
+        if (body.length > this.maxContentLength)
+            return WastebinServer.cors(req.response()).code(413).plain("Content too large");
+        if (this.rateLimiter.check(ipAddress))
+            return WastebinServer.cors(req.response()).code(429).plain("Rate limit exceeded");
+
+        String authKey = req.header("Modification-Key", null);
+        if (authKey == null)
+            return WastebinServer.cors(req.response()).code(403).plain("Modification-Key header not present");
+
+        boolean compressed = req.header("Content-Encoding", "").equals("gzip");
+        if (compressed && (body.length < 2 || body[0] != (byte) 0x1f || body[1] != (byte) 0x8b))
+            return WastebinServer.cors(req.response()).code(400).plain("Content is not in gzip format");
+
+        if (!this.admission.tryAcquire(AdmissionControl.Operation.WRITE))
+            return WastebinServer.busy(req, this.admission);
+
+        this.contentCache.get(path).whenCompleteAsync((content, throwable) -> {
+            try {
+                if (throwable != null || content == null || content.getKey() == null || content.getContentLength() == 0) {
+                    WastebinServer.cors(req.response()).code(404).plain("Invalid path").done();
+                    return;
+                }
+
+                if (!content.isModifiable() || !content.getAuthKey().equals(authKey)) {
+                    WastebinServer.cors(req.response()).code(403).plain("Incorrect modification key").done();
+                    return;
+                }
+
+                // a gzipped body is decoded in full, as trailing data after its last member would
+                // cut off everything appended later - then compressed again, on its own, into a
+                // gzip member which can follow the existing ones
+                byte[] data;
+                try {
+                    data = compressed ? Compression.decompress(body) : body;
+                } catch (IOException e) {
+                    WastebinServer.cors(req.response()).code(400).plain("Content is not in gzip format").done();
+                    return;
+                }
+                ByteBuffer appended = Compression.compress(data);
+
+                // appends & updates to the same paste are applied one at a time
+                Content snapshot;
+                int previousLength;
+                content.getLock().lock();
+                try {
+                    previousLength = content.getContentLength();
+                    if (previousLength + (long) appended.remaining() > this.maxContentLength) {
+                        WastebinServer.cors(req.response()).code(413).plain("Content too large").done();
+                        return;
+                    }
+
+                    this.accessLog.log(AccessLog.Type.PATCH, path, ipAddress, req.header("User-Agent", null), req.header("Origin", null), null, appended.remaining(), previousLength, compressed);
+
+                    // update the content instance in place
+                    content.append(appended);
+                    content.setETag(Content.computeAppendedETag(content.getETag(), appended));
+                    content.setExpiry(System.currentTimeMillis() + this.lifetimeMillis);
+                    content.setLastModified(System.currentTimeMillis());
+                    this.contentCache.invalidateVariants(path);
+                    this.contentCache.invalidateOffHeap(path);
+                    this.responseCache.invalidate(path);
+
+                    // make the http response
+                    WastebinServer.cors(req.response()).code(200)
+                            .body(Content.EMPTY_BYTES)
+                            .done();
+
+                    this.tail.appended(content, data);
+
+                    // saved from a copy, so readers aren't held up by the write
+                    snapshot = content.snapshot();
+                    content.getSaveLock().lock();
+                } finally {
+                    content.getLock().unlock();
+                }
+
+                // save to disk
+                try {
+                    this.contentStorageHandler.append(snapshot, previousLength);
+                } finally {
+                    content.getSaveLock().unlock();
+                }
+            } finally {
+                this.admission.release(AdmissionControl.Operation.WRITE);
+                this.latency.recordSince(start);
+            }
+        }, this.contentStorageHandler.getExecutor());
+
+        return req.async();
+    }
+
+}
@@ -1,62 +1,94 @@
 package ru.spark.wastebin.http;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.rapidoid.http.Req;
 import org.rapidoid.http.ReqHandler;
 import org.rapidoid.http.Resp;
 import org.rapidoid.u.U;
+import ru.spark.wastebin.cluster.ClusterNode;
 import ru.spark.wastebin.content.Content;
 import ru.spark.wastebin.content.ContentCache;
 import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.content.KeyAllocator;
+import ru.spark.wastebin.util.AdmissionControl;
+import ru.spark.wastebin.util.LatencyHistogram;
 import ru.spark.wastebin.util.RateLimiter;
 import ru.spark.wastebin.util.TokenGenerator;
 
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 import static ru.spark.wastebin.http.WastebinServer.cors;
 
 public final class PostHandler implements ReqHandler {
 
-    private static final Logger LOGGER = LogManager.getLogger(PostHandler.class);
-
     private final WastebinServer server;
     private final RateLimiter rateLimiter;
 
     private final ContentStorageHandler contentStorageHandler;
     private final ContentCache contentCache;
-    private final TokenGenerator contentTokenGenerator;
+    private final KeyAllocator keyAllocator;
     private final TokenGenerator authKeyTokenGenerator;
     private final long maxContentLength;
     private final long lifetimeMillis;
     private final Map<String, Long> lifetimeMillisByUserAgent;
+    private final AccessLog accessLog;
+    private final ClusterProxy cluster;
+    private final AdmissionControl admission;
+    private final LatencyHistogram latency;
 
-    public PostHandler(WastebinServer server, RateLimiter rateLimiter, ContentStorageHandler contentStorageHandler, ContentCache contentCache, TokenGenerator contentTokenGenerator, long maxContentLength, long lifetimeMillis, Map<String, Long> lifetimeMillisByUserAgent) {
+    public PostHandler(WastebinServer server, RateLimiter rateLimiter, ContentStorageHandler contentStorageHandler, ContentCache contentCache, KeyAllocator keyAllocator, long maxContentLength, long lifetimeMillis, Map<String, Long> lifetimeMillisByUserAgent, AccessLog accessLog, ClusterProxy cluster, AdmissionControl admission, LatencyHistogram latency) {
         this.server = server;
         this.rateLimiter = rateLimiter;
         this.contentStorageHandler = contentStorageHandler;
         this.contentCache = contentCache;
-        this.contentTokenGenerator = contentTokenGenerator;
-        this.authKeyTokenGenerator = new TokenGenerator(32);
+        this.keyAllocator = keyAllocator;
+        this.authKeyTokenGenerator = new TokenGenerator(32, true);
         this.maxContentLength = maxContentLength;
         this.lifetimeMillis = lifetimeMillis;
         this.lifetimeMillisByUserAgent = lifetimeMillisByUserAgent;
+        this.accessLog = accessLog;
+        this.cluster = cluster;
+        this.admission = admission;
+        this.latency = latency;
     }
 
     @Override
     public Object execute(Req req) {
+        long start = System.nanoTime();
+        Object result = handle(req, start);
+        if (!req.isAsync()) {
+            this.latency.recordSince(start);
+        }
+        return result;
+    }
+
+    private Object handle(Req req, long start) {
+        // reject oversized uploads before doing anything with the body
+        if (WastebinServer.exceedsContentLength(req, this.maxContentLength)) return cors(req.response()).code(413).plain("Content too large");
+
         byte[] content = req.body();
 
         String ipAddress = WastebinServer.getIpAddress(req);
 
         if (content.length == 0) return cors(req.response()).code(400).plain("Missing content");
+
+        // prefer a key owned by this node, so the content can be stored here
+        Predicate<String> local = this.cluster == null ? null : this.cluster::isLocal;
+        String candidate = this.keyAllocator.next(local);
+        if (this.cluster != null) {
+            // otherwise the owning node stores (and rate limits) the upload
+            ClusterNode owner = this.cluster.route(req, candidate);
+            if (owner != null) {
+                if (!this.cluster.forward(req, owner, ipAddress, () -> this.latency.recordSince(start))) return WastebinServer.busy(req, this.admission);
+                return req.async();
+            }
+        }
+
         if (this.rateLimiter.check(ipAddress)) return cors(req.response()).code(429).plain("Rate limit exceeded");
 
         String contentType = req.header("Content-Type", "text/plain");
 
-        String key = this.contentTokenGenerator.generate();
-
         boolean compressed = req.header("Content-Encoding", "").equals("gzip");
 
         String userAgent = req.header("User-Agent", "null");
@@ -65,6 +97,13 @@ public final class PostHandler implements ReqHandler {
         long expiry = System.currentTimeMillis() + this.lifetimeMillisByUserAgent.getOrDefault(userAgent, this.lifetimeMillisByUserAgent.getOrDefault(origin, this.lifetimeMillis));
 
         if (content.length > this.maxContentLength) return cors(req.response()).code(413).plain("Content too large");
+        if (!this.admission.tryAcquire(AdmissionControl.Operation.WRITE)) return WastebinServer.busy(req, this.admission);
+
+        // another upload may have taken the key since it was generated
+        while (!this.keyAllocator.claim(candidate, expiry)) {
+            candidate = this.keyAllocator.next(local);
+        }
+        String key = candidate;
 
         boolean allowModifications = Boolean.parseBoolean(req.header("Allow-Modification", "false"));
         String authKey;
@@ -73,19 +112,18 @@ public final class PostHandler implements ReqHandler {
         } else {
             authKey = null;
         }
-        LOGGER.info("[POST]\n" +
-                "    key = " + key + "\n" +
-                "    type = " + contentType + "\n" +
-                "    user agent = " + userAgent + "\n" +
-                //"    origin = " + ipAddress + (hostname != null ? " (" + hostname + ")" : "") + "\n" +
-                "    ip = " + ipAddress + "\n" +
-                (origin.equals("null") ? "" : "    origin = " + origin + "\n") +
-                "    content size = " + String.format("%,d", content.length / 1024) + " KB" + (compressed ? " (compressed)" : "") + "\n");
+        this.accessLog.log(AccessLog.Type.POST, key, ipAddress, userAgent, origin.equals("null") ? null : origin, contentType, content.length, 0, compressed);
 
         CompletableFuture<Content> future = new CompletableFuture<>();
         this.contentCache.put(key, future);
 
-        this.contentStorageHandler.getExecutor().execute(() -> this.contentStorageHandler.save(key, contentType, content, expiry, authKey, !compressed, future));
+        this.contentStorageHandler.getExecutor().execute(() -> {
+            try {
+                this.contentStorageHandler.save(key, contentType, content, expiry, authKey, !compressed, future);
+            } finally {
+                this.admission.release(AdmissionControl.Operation.WRITE);
+            }
+        });
 
         Resp resp = cors(req.response()).code(201).header("Location", key);
 
@@ -1,22 +1,21 @@
 package ru.spark.wastebin.http;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.rapidoid.http.Req;
 import org.rapidoid.http.ReqHandler;
+import ru.spark.wastebin.cluster.ClusterNode;
 import ru.spark.wastebin.content.Content;
 import ru.spark.wastebin.content.ContentCache;
 import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.util.AdmissionControl;
 import ru.spark.wastebin.util.Compression;
+import ru.spark.wastebin.util.LatencyHistogram;
 import ru.spark.wastebin.util.RateLimiter;
 import ru.spark.wastebin.util.TokenGenerator;
 
-import java.util.concurrent.atomic.AtomicReference;
+import java.nio.ByteBuffer;
 
 public final class PutHandler implements ReqHandler {
 
-    private static final Logger LOGGER = LogManager.getLogger(PutHandler.class);
-
     private final WastebinServer server;
     private final RateLimiter rateLimiter;
 
@@ -24,28 +23,62 @@ public final class PutHandler implements ReqHandler {
     private final ContentCache contentCache;
     private final long maxContentLength;
     private final long lifetimeMillis;
-
-    public PutHandler(WastebinServer server, RateLimiter rateLimiter, ContentStorageHandler contentStorageHandler, ContentCache contentCache, long maxContentLength, long lifetimeMillis) {
+    private final AccessLog accessLog;
+    private final ClusterProxy cluster;
+    private final TailHub tail;
+    private final ResponseCache responseCache;
+    private final AdmissionControl admission;
+    private final LatencyHistogram latency;
+
+    public PutHandler(WastebinServer server, RateLimiter rateLimiter, ContentStorageHandler contentStorageHandler, ContentCache contentCache, long maxContentLength, long lifetimeMillis, AccessLog accessLog, ClusterProxy cluster, TailHub tail, ResponseCache responseCache, AdmissionControl admission, LatencyHistogram latency) {
         this.server = server;
         this.rateLimiter = rateLimiter;
         this.contentStorageHandler = contentStorageHandler;
         this.contentCache = contentCache;
         this.maxContentLength = maxContentLength;
         this.lifetimeMillis = lifetimeMillis;
+        this.accessLog = accessLog;
+        this.cluster = cluster;
+        this.tail = tail;
+        this.responseCache = responseCache;
+        this.admission = admission;
+        this.latency = latency;
     }
 
     @Override
     public Object execute(Req req) {
+        long start = System.nanoTime();
+        Object result = handle(req, start);
+        if (!req.isAsync()) {
+            this.latency.recordSince(start);
+        }
+        return result;
+    }
+
+    private Object handle(Req req, long start) {
         String path = req.path().substring(1);
         if (path.trim().isEmpty() || path.contains(".") || TokenGenerator.INVALID_TOKEN_PATTERN.matcher(path).find()) {
             return WastebinServer.cors(req.response()).code(404).plain("Invalid path");
         }
 
-        AtomicReference<byte[]> newContent = new AtomicReference<>(req.body());
-
         String ipAddress = WastebinServer.getIpAddress(req);
 
-        if (newContent.get().length == 0) return WastebinServer.cors(req.response()).code(400).plain("Missing content");
+        // keys owned by another node are updated (and rate limited) there
+        ClusterNode owner = this.cluster == null ? null : this.cluster.route(req, path);
+        if (owner != null) {
+            if (!this.cluster.forward(req, owner, ipAddress, () -> this.latency.recordSince(start))) return WastebinServer.busy(req, this.admission);
+            return req.async();
+        }
+
+        // reject oversized uploads before doing anything with the body
+        if (WastebinServer.exceedsContentLength(req, this.maxContentLength))
+            return WastebinServer.cors(req.response()).code(413).plain("Content too large");
+
+        byte[] body = req.body();
+
+        if (body.length == 0) return WastebinServer.cors(req.response()).code(400).plain("Missing content");
+        if (body.length > this.maxContentLength)
+            return WastebinServer.cors(req.response()).code(413).plain("Content too large");
         if (this.rateLimiter.check(ipAddress))
             return WastebinServer.cors(req.response()).code(429).plain("Rate limit exceeded");
 
@@ -53,59 +86,73 @@ public final class PutHandler implements ReqHandler {
         if (authKey == null)
             return WastebinServer.cors(req.response()).code(403).plain("Modification-Key header not present");
 
-        this.contentCache.get(path).whenCompleteAsync((oldContent, throwable) -> {
-            if (throwable != null || oldContent == null || oldContent.getKey() == null || oldContent.getContent().length == 0) {
-                WastebinServer.cors(req.response()).plain("Incorrect modification key").done();
-                return;
-            }
-
-            if (!oldContent.isModifiable()) {
-                WastebinServer.cors(req.response()).code(403).plain("Incorrect modification key").done();
-                return;
-            }
-
-            if (!oldContent.getAuthKey().equals(authKey)) {
-                WastebinServer.cors(req.response()).code(403).plain("Incorrect modification key").done();
-                return;
-            }
+        if (!this.admission.tryAcquire(AdmissionControl.Operation.WRITE))
+            return WastebinServer.busy(req, this.admission);
 
-            String newContentType = req.header("Content-Type", oldContent.getContentType());
-
-            boolean compressed = req.header("Content-Encoding", "").equals("gzip");
-            if (!compressed) {
-                newContent.set(Compression.compress(newContent.get()));
-            }
-
-            if (newContent.get().length > this.maxContentLength) {
-                WastebinServer.cors(req.response()).code(413).plain("Content too large").done();
-                return;
+        this.contentCache.get(path).whenCompleteAsync((oldContent, throwable) -> {
+            try {
+                if (throwable != null || oldContent == null || oldContent.getKey() == null || oldContent.getContentLength() == 0) {
+                    WastebinServer.cors(req.response()).plain("Incorrect modification key").done();
+                    return;
+                }
+
+                if (!oldContent.isModifiable()) {
+                    WastebinServer.cors(req.response()).code(403).plain("Incorrect modification key").done();
+                    return;
+                }
+
+                if (!oldContent.getAuthKey().equals(authKey)) {
+                    WastebinServer.cors(req.response()).code(403).plain("Incorrect modification key").done();
+                    return;
+                }
+
+                String newContentType = req.header("Content-Type", oldContent.getContentType());
+
+                boolean compressed = req.header("Content-Encoding", "").equals("gzip");
+                ByteBuffer newContent = compressed ? ByteBuffer.wrap(body) : Compression.compress(body);
+
+                long newExpiry = System.currentTimeMillis() + this.lifetimeMillis;
+
+                this.accessLog.log(AccessLog.Type.PUT, path, ipAddress, req.header("User-Agent", null), req.header("Origin", null), newContentType, newContent.remaining(), oldContent.getContentLength(), compressed);
+
+                // appends & updates to the same paste are applied one at a time
+                Content snapshot;
+                oldContent.getLock().lock();
+                try {
+                    // update the content instance with the new data
+                    oldContent.setContentType(newContentType);
+                    oldContent.setExpiry(newExpiry);
+                    oldContent.setLastModified(System.currentTimeMillis());
+                    oldContent.setContent(newContent);
+                    oldContent.setETag(Content.computeETag(newContent));
+                    this.contentCache.invalidateVariants(path);
+                    this.contentCache.invalidateOffHeap(path);
+                    this.responseCache.invalidate(path);
+
+                    // make the http response
+                    WastebinServer.cors(req.response()).code(200)
+                            .body(Content.EMPTY_BYTES)
+                            .done();
+
+                    this.tail.replaced(oldContent);
+
+                    // saved from a copy, so readers aren't held up by the write
+                    snapshot = oldContent.snapshot();
+                    oldContent.getSaveLock().lock();
+                } finally {
+                    oldContent.getLock().unlock();
+                }
+
+                // save to disk
+                try {
+                    this.contentStorageHandler.save(snapshot);
+                } finally {
+                    oldContent.getSaveLock().unlock();
+                }
+            } finally {
+                this.admission.release(AdmissionControl.Operation.WRITE);
+                this.latency.recordSince(start);
             }
-
-            long newExpiry = System.currentTimeMillis() + this.lifetimeMillis;
-
-            String origin = req.header("Origin", null);
-            LOGGER.info("[PUT]\n" +
-                    "    key = " + path + "\n" +
-                    "    new type = " + new String(newContentType.getBytes()) + "\n" +
-                    "    user agent = " + req.header("User-Agent", "null") + "\n" +
-                    "    ip = " + ipAddress + "\n" +
-                    (origin == null ? "" : "    origin = " + origin + "\n") +
-                    "    old content size = " + String.format("%,d", oldContent.getContent().length / 1024) + " KB" + "\n" +
-                    "    new content size = " + String.format("%,d", newContent.get().length / 1024) + " KB" + "\n");
-
-            // update the content instance with the new data
-            oldContent.setContentType(newContentType);
-            oldContent.setExpiry(newExpiry);
-            oldContent.setLastModified(System.currentTimeMillis());
-            oldContent.setContent(newContent.get());
-
-            // make the http response
-            WastebinServer.cors(req.response()).code(200)
-                    .body(Content.EMPTY_BYTES)
-                    .done();
-
-            // save to disk
-            this.contentStorageHandler.save(oldContent);
         }, this.contentStorageHandler.getExecutor());
 
         return req.async();
@@ -0,0 +1,193 @@
+package ru.spark.wastebin.http;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.rapidoid.http.MediaType;
+import org.rapidoid.http.Req;
+import org.rapidoid.http.Resp;
+import ru.spark.wastebin.content.Content;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches prepared http responses - formatted headers & a contiguous body on the heap - for
+ * popular content, so serving them again skips formatting, decompression and copying the
+ * body out of mapped or shared buffers.
+ *
+ * <p>Each key holds a response for the gzip and the identity encoding. Responses are checked
+ * against the content's etag and last modified time before they're used, as well as being
+ * invalidated when the content changes. They're written through the server's public
+ * response api, which adds the status line and connection headers as for any other.</p>
+ */
+public final class ResponseCache {
+
+    /**
+     * The cached responses, or null if disabled
+     */
+    private final Cache<String, Entry> cache;
+
+    /**
+     * The largest body which will be cached
+     */
+    private final int maxBodyLength;
+
+    public ResponseCache(Executor executor, int cacheTimeMins, long maxWeight, int maxBodyLength) {
+        this.maxBodyLength = maxBodyLength;
+        if (maxWeight > 0) {
+            this.cache = Caffeine.newBuilder()
+                    .executor(executor)
+                    .expireAfterAccess(cacheTimeMins, TimeUnit.MINUTES)
+                    .maximumWeight(maxWeight)
+                    .weigher((Weigher<String, Entry>) (key, entry) -> entry.getWeight())
+                    .recordStats()
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    public CacheStats getStats() {
+        return this.cache == null ? CacheStats.empty() : this.cache.stats();
+    }
+
+    public boolean isEnabled() {
+        return this.cache != null;
+    }
+
+    /**
+     * Gets the cached response for the given content.
+     *
+     * @param content the content
+     * @param gzip if the response is gzip encoded
+     * @return the response, or null if there isn't a current one
+     */
+    public Prepared get(Content content, boolean gzip) {
+        Entry entry = this.cache.getIfPresent(content.getKey());
+        if (entry == null || !entry.isVersion(content.getETag(), content.getLastModified())) {
+            return null;
+        }
+        return gzip ? entry.gzip : entry.identity;
+    }
+
+    /**
+     * Prepares a 200 response for the given content, and caches it.
+     *
+     * @param key the key
+     * @param eTag the etag of the content the body was read from
+     * @param lastModified the last modified time of the content the body was read from
+     * @param gzip if the body is gzip encoded
+     * @param contentType the content type
+     * @param headers the other headers, as alternating names & values
+     * @param body the body
+     * @return the response, or null if it's too large to cache
+     */
+    public Prepared put(String key, String eTag, long lastModified, boolean gzip, MediaType contentType, String[] headers, ByteBuffer body) {
+        if (body.remaining() > this.maxBodyLength) {
+            return null;
+        }
+
+        Prepared prepared = Prepared.prepare(gzip, contentType, headers, body);
+
+        // keep the other encoding, if it was prepared from the same content
+        Entry existing = this.cache.getIfPresent(key);
+        if (existing != null && !existing.isVersion(eTag, lastModified)) {
+            existing = null;
+        }
+        Entry entry = gzip
+                ? new Entry(eTag, lastModified, prepared, existing == null ? null : existing.identity)
+                : new Entry(eTag, lastModified, existing == null ? null : existing.gzip, prepared);
+        this.cache.put(key, entry);
+        return prepared;
+    }
+
+    /**
+     * Invalidates the cached responses for the given key.
+     *
+     * @param key the key
+     */
+    public void invalidate(String key) {
+        if (this.cache != null) {
+            this.cache.invalidate(key);
+        }
+    }
+
+    /**
+     * The responses for a key, and the version of the content they were prepared from
+     */
+    private static final class Entry {
+        private final String eTag;
+        private final long lastModified;
+        private final Prepared gzip;
+        private final Prepared identity;
+
+        Entry(String eTag, long lastModified, Prepared gzip, Prepared identity) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.gzip = gzip;
+            this.identity = identity;
+        }
+
+        boolean isVersion(String eTag, long lastModified) {
+            return this.lastModified == lastModified && this.eTag.equals(eTag);
+        }
+
+        int getWeight() {
+            return (this.gzip == null ? 0 : this.gzip.getWeight()) + (this.identity == null ? 0 : this.identity.getWeight());
+        }
+    }
+
+    /**
+     * A prepared response
+     */
+    public static final class Prepared {
+        private final MediaType contentType;
+        private final String[] headers;
+        private final byte[] body;
+
+        private Prepared(MediaType contentType, String[] headers, byte[] body) {
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * Writes the response, completing the request.
+         *
+         * @param req the request
+         */
+        public void write(Req req) {
+            Resp resp = req.response().code(200).contentType(this.contentType);
+            for (int i = 0; i < this.headers.length; i += 2) {
+                resp.header(this.headers[i], this.headers[i + 1]);
+            }
+            resp.body(this.body).done();
+        }
+
+        int getWeight() {
+            int weight = this.body.length;
+            for (String header : this.headers) {
+                weight += header.length();
+            }
+            return weight;
+        }
+
+        static Prepared prepare(boolean gzip, MediaType contentType, String[] headers, ByteBuffer body) {
+            String[] prepared = headers;
+            if (gzip) {
+                prepared = new String[headers.length + 2];
+                System.arraycopy(headers, 0, prepared, 0, headers.length);
+                prepared[headers.length] = "Content-Encoding";
+                prepared[headers.length + 1] = "gzip";
+            }
+
+            byte[] copy = new byte[body.remaining()];
+            body.duplicate().get(copy);
+            return new Prepared(contentType, prepared, copy);
+        }
+    }
+
+}
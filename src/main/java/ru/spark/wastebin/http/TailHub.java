@@ -0,0 +1,400 @@
+package ru.spark.wastebin.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.rapidoid.http.MediaType;
+import org.rapidoid.http.Req;
+import org.rapidoid.http.Resp;
+import ru.spark.wastebin.content.Content;
+import ru.spark.wastebin.util.Compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static ru.spark.wastebin.http.WastebinServer.cors;
+
+/**
+ * Notifies clients watching a modifiable paste when it changes - either over a stream of
+ * server-sent events, or by completing a long-polling request.
+ *
+ * <p>Each change is formatted once, and written to every watcher from a single thread, so
+ * the cost of an update is independent of how many clients are watching. Streams are
+ * closed after a while, and clients reconnect with the id of the last event they saw to
+ * pick up anything they missed.</p>
+ */
+public final class TailHub implements AutoCloseable {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(TailHub.class);
+
+    /**
+     * Comment sent to keep idle streams open
+     */
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Starts another line of event data
+     */
+    private static final byte[] DATA_FIELD = "\ndata: ".getBytes(StandardCharsets.UTF_8);
+
+    private static final MediaType EVENT_STREAM = MediaType.of("text/event-stream");
+
+    private final ScheduledExecutorService executor;
+    private final long streamTimeoutMillis;
+    private final long maxWaitMillis;
+    private final int maxSubscribers;
+
+    /**
+     * The watchers of each key
+     */
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    /**
+     * Numbers each change as it's made, so a watcher can skip changes made before it subscribed
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final LongAdder eventCount = new LongAdder();
+
+    public TailHub(long streamTimeoutMillis, long heartbeatMillis, long maxWaitMillis, int maxSubscribers) {
+        this.streamTimeoutMillis = streamTimeoutMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxSubscribers = maxSubscribers;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("wastebin-tail").setDaemon(true).build());
+        this.executor.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getSubscriberCount() {
+        return this.subscriberCount.get();
+    }
+
+    public long getEventCount() {
+        return this.eventCount.sum();
+    }
+
+    public long getMaxWaitMillis() {
+        return this.maxWaitMillis;
+    }
+
+    /**
+     * Gets if the request asks for a stream of server-sent events.
+     *
+     * @param req the request
+     * @return if the request is for a stream
+     */
+    static boolean isStreamRequest(Req req) {
+        String accept = req.header("Accept", null);
+        return accept != null && accept.contains("text/event-stream");
+    }
+
+    /**
+     * Starts streaming changes to the given content to the client.
+     *
+     * <p>If the request has a {@code Last-Event-ID}, anything appended since that event is
+     * sent straight away.</p>
+     *
+     * @param req the request, which must be async
+     * @param content the content
+     */
+    public void stream(Req req, Content content) {
+        if (!reserve()) {
+            cors(req.response()).code(503).header("Retry-After", "5").plain("Too many watchers").done();
+            return;
+        }
+
+        Resp resp = cors(req.response())
+                .code(200)
+                .contentType(EVENT_STREAM)
+                .header("Cache-Control", "no-cache");
+
+        // changes are published whilst holding the content's lock, so none can be missed in between
+        long deadline = System.currentTimeMillis() + this.streamTimeoutMillis;
+        content.getLock().lock();
+        try {
+            resp.chunk(catchUp(content, req.header("Last-Event-ID", null)));
+            subscribe(content.getKey(), new Subscriber(resp, null, this.sequence.get(), deadline));
+        } finally {
+            content.getLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the given key to change. Called whilst holding the content's lock, like
+     * the methods publishing changes, so only changes made after this call are seen.
+     *
+     * @param key the key
+     * @param waitMillis how long to wait, capped at the maximum
+     * @param onChange called (on the hub's thread) when the key changes
+     * @param onTimeout called (on the hub's thread) if the key doesn't change in time
+     * @return false if there are already too many watchers
+     */
+    public boolean await(String key, long waitMillis, Runnable onChange, Runnable onTimeout) {
+        if (!reserve()) {
+            return false;
+        }
+        long wait = Math.min(waitMillis, this.maxWaitMillis);
+        Subscriber subscriber = new Subscriber(null, new Runnable[]{onChange, onTimeout}, this.sequence.get(), Long.MAX_VALUE);
+        subscribe(key, subscriber);
+        this.executor.schedule(() -> expire(key, subscriber), wait, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // times out a long-poll, unless it has already been notified
+    private void expire(String key, Subscriber subscriber) {
+        Topic topic = this.topics.get(key);
+        if (topic == null) {
+            return;
+        }
+        boolean removed;
+        synchronized (topic) {
+            removed = topic.subscribers.remove(subscriber);
+        }
+        if (removed) {
+            this.subscriberCount.decrementAndGet();
+            Subscriber.run(subscriber.callbacks[1]);
+        }
+    }
+
+    /**
+     * Notifies watchers that data was appended to the content.
+     *
+     * @param content the content, after the append
+     * @param data the appended data, uncompressed
+     */
+    public void appended(Content content, byte[] data) {
+        Topic topic = this.topics.get(content.getKey());
+        if (topic == null) {
+            return;
+        }
+
+        long sequence = this.sequence.incrementAndGet();
+        long id = content.getContentLength();
+        this.executor.execute(() -> publish(topic, sequence, appendEvent(id, data)));
+    }
+
+    /**
+     * Notifies watchers that the content was replaced.
+     *
+     * @param content the content, after the update
+     */
+    public void replaced(Content content) {
+        Topic topic = this.topics.get(content.getKey());
+        if (topic == null) {
+            return;
+        }
+        long sequence = this.sequence.incrementAndGet();
+        byte[] event = replaceEvent(content);
+        this.executor.execute(() -> publish(topic, sequence, event));
+    }
+
+    private boolean reserve() {
+        if (this.subscriberCount.incrementAndGet() > this.maxSubscribers) {
+            this.subscriberCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void subscribe(String key, Subscriber subscriber) {
+        // the topic may be removed by the heartbeat between lookup and locking it - so retry
+        while (true) {
+            Topic topic = this.topics.computeIfAbsent(key, k -> new Topic());
+            synchronized (topic) {
+                if (!topic.removed) {
+                    topic.subscribers.add(subscriber);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void publish(Topic topic, long sequence, byte[] event) {
+        this.eventCount.increment();
+        synchronized (topic) {
+            Iterator<Subscriber> it = topic.subscribers.iterator();
+            while (it.hasNext()) {
+                Subscriber subscriber = it.next();
+                // a stream already caught up with changes made before it subscribed
+                if (sequence <= subscriber.start) {
+                    continue;
+                }
+                if (!subscriber.deliver(event)) {
+                    it.remove();
+                    this.subscriberCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    // sends heartbeats, closes streams which have run for long enough, and drops empty topics
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        for (Topic topic : this.topics.values()) {
+            synchronized (topic) {
+                Iterator<Subscriber> it = topic.subscribers.iterator();
+                while (it.hasNext()) {
+                    Subscriber subscriber = it.next();
+                    if (!subscriber.heartbeat(now)) {
+                        it.remove();
+                        this.subscriberCount.decrementAndGet();
+                    }
+                }
+                if (topic.subscribers.isEmpty()) {
+                    topic.removed = true;
+                }
+            }
+        }
+        this.topics.values().removeIf(topic -> topic.removed);
+    }
+
+    // the events a new stream starts with
+    private static byte[] catchUp(Content content, String lastEventId) {
+        long id = content.getContentLength();
+        if (lastEventId != null) {
+            long lastId;
+            try {
+                lastId = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                lastId = -1;
+            }
+            if (lastId == id) {
+                return HEARTBEAT;
+            }
+            if (lastId > 0 && lastId < id) {
+                // each append ends on a gzip member boundary, so the rest can be read on its own
+                ByteBuffer missed = content.getContentBuffer();
+                missed.position(missed.position() + (int) lastId);
+                try {
+                    return appendEvent(id, Compression.decompress(missed));
+                } catch (IOException e) {
+                    // not a boundary - the content was replaced since
+                }
+            }
+            return replaceEvent(content);
+        }
+        return event(id, "open", metadata(content));
+    }
+
+    private static byte[] appendEvent(long id, byte[] data) {
+        return event(id, "append", data);
+    }
+
+    private static byte[] replaceEvent(Content content) {
+        return event(content.getContentLength(), "replace", metadata(content));
+    }
+
+    private static byte[] metadata(Content content) {
+        return ("{\"lastModified\":" + content.getLastModified() + ",\"etag\":\"" + content.getETag() + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Formats a server-sent event. Each line of the data is sent as a data field, which
+     * clients join back together with newlines.
+     */
+    private static byte[] event(long id, String type, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 64);
+        byte[] header = ("id: " + id + "\nevent: " + type + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+        out.write(header, 0, header.length);
+        for (int i = 0; i < data.length; i++) {
+            byte b = data[i];
+            if (b == '\r' || b == '\n') {
+                // \r\n, \r & \n all end a line
+                if (b == '\r' && i + 1 < data.length && data[i + 1] == '\n') {
+                    i++;
+                }
+                out.write(DATA_FIELD, 0, DATA_FIELD.length);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write('\n');
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    private static final class Topic {
+        private final List<Subscriber> subscribers = new ArrayList<>();
+
+        // set once the topic has been dropped from the map, so nothing new subscribes to it
+        private boolean removed;
+    }
+
+    private static final class Subscriber {
+        // the stream, or null for a long-poll
+        private final Resp resp;
+        // the change & timeout callbacks of a long-poll
+        private final Runnable[] callbacks;
+        // the sequence number of the last change made before subscribing
+        private final long start;
+        private final long deadline;
+
+        Subscriber(Resp resp, Runnable[] callbacks, long start, long deadline) {
+            this.resp = resp;
+            this.callbacks = callbacks;
+            this.start = start;
+            this.deadline = deadline;
+        }
+
+        // returns false once the subscriber is finished with
+        boolean deliver(byte[] event) {
+            if (this.resp == null) {
+                run(this.callbacks[0]);
+                return false;
+            }
+            try {
+                this.resp.chunk(event);
+                return true;
+            } catch (RuntimeException e) {
+                // the client has gone
+                return false;
+            }
+        }
+
+        boolean heartbeat(long now) {
+            if (this.resp == null) {
+                // long-polls are timed out separately
+                return true;
+            }
+            if (now < this.deadline) {
+                return deliver(HEARTBEAT);
+            }
+            try {
+                this.resp.done();
+            } catch (RuntimeException e) {
+                // ignore
+            }
+            return false;
+        }
+
+        private static void run(Runnable callback) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Exception thrown by tail callback", e);
+            }
+        }
+    }
+
+}
@@ -1,16 +1,21 @@
 package ru.spark.wastebin.http;
 
+import com.google.common.collect.ImmutableMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.rapidoid.http.Req;
+import org.rapidoid.http.ReqHandler;
 import org.rapidoid.http.Resp;
 import org.rapidoid.setup.Setup;
 import ru.spark.wastebin.content.Content;
 import ru.spark.wastebin.content.ContentCache;
 import ru.spark.wastebin.content.ContentStorageHandler;
+import ru.spark.wastebin.content.KeyAllocator;
+import ru.spark.wastebin.util.AdmissionControl;
+import ru.spark.wastebin.util.LatencyHistogram;
 import ru.spark.wastebin.util.RateLimiter;
-import ru.spark.wastebin.util.TokenGenerator;
 
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 
 public class WastebinServer {
@@ -19,7 +24,10 @@ public class WastebinServer {
 
     private final Setup server;
 
-    public WastebinServer(ContentStorageHandler contentStorageHandler, ContentCache contentCache, String host, int port, RateLimiter postRateLimiter, RateLimiter putRateLimiter, RateLimiter readRateLimiter, byte[] indexPage, TokenGenerator contentTokenGenerator, long maxContentLength, long lifetimeMillis, Map<String, Long> lifetimeMillisByUserAgent) {
+    // how long after the process started the server began accepting requests
+    private volatile long startupMillis = -1;
+
+    public WastebinServer(ContentStorageHandler contentStorageHandler, ContentCache contentCache, String host, int port, RateLimiter postRateLimiter, RateLimiter putRateLimiter, RateLimiter readRateLimiter, byte[] indexPage, KeyAllocator keyAllocator, long maxContentLength, long lifetimeMillis, Map<String, Long> lifetimeMillisByUserAgent, AccessLog accessLog, ClusterProxy cluster, TailHub tail, ResponseCache responseCache, AdmissionControl admission, String metricsPath) {
         this.server = Setup.create("wastebin");
         this.server.address(host).port(port);
 
@@ -29,13 +37,38 @@ public class WastebinServer {
             return cors(resp).code(404).plain("Invalid path");
         });
 
+        // per-handler latency histograms
+        LatencyHistogram getLatency = new LatencyHistogram();
+        LatencyHistogram postLatency = new LatencyHistogram();
+        LatencyHistogram putLatency = new LatencyHistogram();
+        LatencyHistogram patchLatency = new LatencyHistogram();
+
         // define route handlers
         defineOptionsRoute(this.server, "/post", "POST");
         defineOptionsRoute(this.server, "/*", "GET");
         this.server.page("/").html(indexPage);
-        this.server.post("/post").managed(false).serve(new PostHandler(this, postRateLimiter, contentStorageHandler, contentCache, contentTokenGenerator, maxContentLength, lifetimeMillis, lifetimeMillisByUserAgent));
-        this.server.get("/*").managed(false).cacheCapacity(0).serve(new GetHandler(this, readRateLimiter, contentCache));
-        this.server.put("/*").managed(false).cacheCapacity(0).serve(new PutHandler(this, putRateLimiter, contentStorageHandler, contentCache, maxContentLength, lifetimeMillis));
+        if (!metricsPath.isEmpty()) {
+            this.server.get(metricsPath).managed(false).cacheCapacity(0).serve(new MetricsHandler(
+                    this,
+                    contentStorageHandler,
+                    contentCache,
+                    ImmutableMap.of("post", postRateLimiter, "put", putRateLimiter, "read", readRateLimiter),
+                    ImmutableMap.of("get", getLatency, "post", postLatency, "put", putLatency, "patch", patchLatency),
+                    accessLog,
+                    cluster,
+                    keyAllocator,
+                    tail,
+                    responseCache,
+                    admission
+            ));
+        }
+        this.server.post("/post").managed(false).serve(new PostHandler(this, postRateLimiter, contentStorageHandler, contentCache, keyAllocator, maxContentLength, lifetimeMillis, lifetimeMillisByUserAgent, accessLog, cluster, admission, postLatency));
+        this.server.get("/*").managed(false).cacheCapacity(0).serve(new GetHandler(this, readRateLimiter, contentCache, accessLog, cluster, tail, responseCache, admission, getLatency));
+        PutHandler putHandler = new PutHandler(this, putRateLimiter, contentStorageHandler, contentCache, maxContentLength, lifetimeMillis, accessLog, cluster, tail, responseCache, admission, putLatency);
+        PatchHandler patchHandler = new PatchHandler(this, putRateLimiter, contentStorageHandler, contentCache, maxContentLength, lifetimeMillis, accessLog, cluster, tail, responseCache, admission, patchLatency);
+        // patches forwarded by another node arrive as puts
+        this.server.put("/*").managed(false).cacheCapacity(0).serve((ReqHandler) req -> cluster != null && cluster.isForwardedPatch(req) ? patchHandler.execute(req) : putHandler.execute(req));
+        this.server.patch("/*").managed(false).cacheCapacity(0).serve(patchHandler);
     }
 
     private static void defineOptionsRoute(Setup setup, String path, String allowedMethod) {
@@ -52,6 +85,23 @@ public class WastebinServer {
         return resp.header("Access-Control-Allow-Origin", "*");
     }
 
+    // the response to a request refused because the i/o queue for it is full
+    static Resp busy(Req req, AdmissionControl admission) {
+        return cors(req.response()).code(503).header("Retry-After", admission.getRetryAfterSeconds()).plain("Server busy");
+    }
+
+    static boolean exceedsContentLength(Req req, long maxContentLength) {
+        String header = req.header("Content-Length", null);
+        if (header == null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(header.trim()) > maxContentLength;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     static String getIpAddress(Req req) {
         String ipAddress = req.header("x-real-ip", null);
         if (ipAddress == null) {
@@ -62,6 +112,16 @@ public class WastebinServer {
 
     public void start() {
         this.server.activate();
+        this.startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    /**
+     * Gets how long after the process started the server began accepting requests.
+     *
+     * @return the startup time, or -1 if the server hasn't started
+     */
+    public long getStartupMillis() {
+        return this.startupMillis;
     }
 
     public void halt() {
@@ -0,0 +1,189 @@
+package ru.spark.wastebin.util;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Bounds the i/o work queued by each kind of request, so a slow disk makes the server turn
+ * requests away rather than queue them until it runs out of memory.
+ *
+ * <p>Handlers take a slot before queueing work on the i/o executor, and give it back once
+ * the work has run. If an operation's queue is full the request is refused straight away,
+ * and the client told when to retry. Background work waits for queued reads to drain
+ * before it starts, for up to a limit, so it doesn't compete with them for the disk -
+ * work on a shared scheduler is rescheduled rather than holding one of its threads.</p>
+ */
+public final class AdmissionControl {
+
+    /**
+     * How often background work checks if queued reads have drained
+     */
+    private static final long YIELD_INTERVAL_MILLIS = 50;
+
+    public enum Operation {
+        READ, WRITE
+    }
+
+    private final Gate[] gates;
+    private final String retryAfterSeconds;
+
+    // the number of queued reads which background work waits for, or 0 to never wait
+    private final int backgroundYieldDepth;
+    private final long backgroundMaxDeferNanos;
+
+    private final LongAdder deferredCount = new LongAdder();
+    private final LongAdder deferredNanos = new LongAdder();
+
+    /**
+     * Creates a new admission control.
+     *
+     * @param maxQueuedReads the most reads queued at once, or 0 for no limit
+     * @param maxQueuedWrites the most writes queued at once, or 0 for no limit
+     * @param writeBacklog writes accepted but not yet written, which count against the limit
+     * @param retryAfterSeconds how long refused clients are told to wait
+     * @param backgroundYieldDepth the number of queued reads background work waits for, or 0
+     * @param backgroundMaxDeferMillis the longest background work waits
+     */
+    public AdmissionControl(int maxQueuedReads, int maxQueuedWrites, IntSupplier writeBacklog, int retryAfterSeconds, int backgroundYieldDepth, long backgroundMaxDeferMillis) {
+        this.gates = new Gate[]{
+                new Gate(maxQueuedReads, () -> 0),
+                new Gate(maxQueuedWrites, writeBacklog)
+        };
+        this.retryAfterSeconds = Integer.toString(retryAfterSeconds);
+        this.backgroundYieldDepth = backgroundYieldDepth;
+        this.backgroundMaxDeferNanos = TimeUnit.MILLISECONDS.toNanos(backgroundMaxDeferMillis);
+    }
+
+    /**
+     * Takes a slot in the queue for the given operation.
+     *
+     * @param operation the operation
+     * @return false if the queue is full, in which case nothing needs to be released
+     */
+    public boolean tryAcquire(Operation operation) {
+        return this.gates[operation.ordinal()].tryAcquire();
+    }
+
+    /**
+     * Gives back a slot taken by {@link #tryAcquire(Operation)}.
+     *
+     * @param operation the operation
+     */
+    public void release(Operation operation) {
+        this.gates[operation.ordinal()].depth.decrementAndGet();
+    }
+
+    /**
+     * Gets the value of the Retry-After header sent with refused requests.
+     *
+     * @return the number of seconds to wait
+     */
+    public String getRetryAfterSeconds() {
+        return this.retryAfterSeconds;
+    }
+
+    public int getDepth(Operation operation) {
+        return this.gates[operation.ordinal()].getDepth();
+    }
+
+    public int getLimit(Operation operation) {
+        return this.gates[operation.ordinal()].limit;
+    }
+
+    public long getRejectedCount(Operation operation) {
+        return this.gates[operation.ordinal()].rejectedCount.sum();
+    }
+
+    public long getDeferredCount() {
+        return this.deferredCount.sum();
+    }
+
+    public long getDeferredNanos() {
+        return this.deferredNanos.sum();
+    }
+
+    /**
+     * Runs background work on the given scheduler once queued reads have drained below the
+     * yield depth, or the maximum deferral has passed. Whilst waiting, the work is scheduled
+     * to check again later, so other tasks on the scheduler - like write-behind flushes -
+     * aren't held up.
+     *
+     * @param scheduler the scheduler the work runs on
+     * @param task the work
+     */
+    public void runAfterReads(ScheduledExecutorService scheduler, Runnable task) {
+        runAfterReads(scheduler, task, System.nanoTime(), false);
+    }
+
+    private void runAfterReads(ScheduledExecutorService scheduler, Runnable task, long start, boolean deferred) {
+        if (this.backgroundYieldDepth > 0 && getDepth(Operation.READ) >= this.backgroundYieldDepth && System.nanoTime() - start < this.backgroundMaxDeferNanos) {
+            try {
+                scheduler.schedule(() -> runAfterReads(scheduler, task, start, true), YIELD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                return;
+            }
+        }
+
+        if (deferred) {
+            this.deferredCount.increment();
+            this.deferredNanos.add(System.nanoTime() - start);
+        }
+        task.run();
+    }
+
+    /**
+     * Called by background work on a thread of its own before it starts - waits until
+     * queued reads have drained below the yield depth, or the maximum deferral has passed.
+     */
+    public void awaitReads() {
+        if (this.backgroundYieldDepth <= 0 || getDepth(Operation.READ) < this.backgroundYieldDepth) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            while (getDepth(Operation.READ) >= this.backgroundYieldDepth && System.nanoTime() - start < this.backgroundMaxDeferNanos) {
+                Thread.sleep(YIELD_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.deferredCount.increment();
+        this.deferredNanos.add(System.nanoTime() - start);
+    }
+
+    private static final class Gate {
+        private final int limit;
+        private final IntSupplier backlog;
+
+        // slots currently taken
+        private final AtomicInteger depth = new AtomicInteger();
+        private final LongAdder rejectedCount = new LongAdder();
+
+        Gate(int limit, IntSupplier backlog) {
+            this.limit = limit;
+            this.backlog = backlog;
+        }
+
+        boolean tryAcquire() {
+            int depth = this.depth.incrementAndGet();
+            if (this.limit > 0 && depth + this.backlog.getAsInt() > this.limit) {
+                this.depth.decrementAndGet();
+                this.rejectedCount.increment();
+                return false;
+            }
+            return true;
+        }
+
+        int getDepth() {
+            return this.depth.get() + this.backlog.getAsInt();
+        }
+    }
+
+}
@@ -1,43 +1,116 @@
 package ru.spark.wastebin.util;
 
 import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
-import com.google.common.io.ByteStreams;
 import org.rapidoid.http.Req;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.zip.Deflater;
 
 public final class Compression {
 
-    private static final Splitter COMMA_SPLITTER = Splitter.on(", ");
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Splitter SEMICOLON_SPLITTER = Splitter.on(';').trimResults().omitEmptyStrings();
+
+    /**
+     * The engine used to compress & decompress data
+     */
+    private static volatile CompressionEngine engine = new CompressionEngine(Deflater.DEFAULT_COMPRESSION, 0, 0, null);
 
     private Compression() {
     }
 
+    /**
+     * Determines whether the gzip encoded form of some content should be sent
+     * in response to the given request, taking into account the q-values given
+     * in the Accept-Encoding header.
+     *
+     * @param req the request
+     * @return true if the client prefers gzip
+     */
     public static boolean acceptsCompressed(Req req) {
-        String header = req.header("Accept-Encoding", null);
-        return header != null && Iterables.contains(COMMA_SPLITTER.split(header), "gzip");
+        return prefersCompressed(req.header("Accept-Encoding", null));
     }
 
-    public static byte[] compress(byte[] buf) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream(buf.length);
-        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
-            gzipOut.write(buf);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    static boolean prefersCompressed(String header) {
+        if (header == null) {
+            return false;
+        }
+
+        float gzip = -1;
+        float identity = -1;
+        float wildcard = -1;
+        for (String part : COMMA_SPLITTER.split(header)) {
+            Iterator<String> params = SEMICOLON_SPLITTER.split(part).iterator();
+            if (!params.hasNext()) {
+                continue;
+            }
+
+            String coding = params.next();
+            float quality = 1;
+            while (params.hasNext()) {
+                String param = params.next();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = Math.max(gzip, quality);
+            } else if (coding.equalsIgnoreCase("identity")) {
+                identity = Math.max(identity, quality);
+            } else if (coding.equals("*")) {
+                wildcard = Math.max(wildcard, quality);
+            }
         }
-        return out.toByteArray();
+
+        if (gzip < 0) {
+            gzip = Math.max(wildcard, 0);
+        }
+
+        // an unlisted identity encoding is only used as a fallback
+        return gzip > 0 && gzip >= identity;
+    }
+
+    /**
+     * Gets the engine used to compress & decompress data.
+     *
+     * @return the compression engine
+     */
+    public static CompressionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the engine used to compress & decompress data.
+     *
+     * @param engine the compression engine
+     */
+    public static void setEngine(CompressionEngine engine) {
+        Compression.engine = engine;
+    }
+
+    /**
+     * Compresses the given data.
+     *
+     * @param buf the data to compress
+     * @return a buffer containing the compressed data
+     */
+    public static ByteBuffer compress(byte[] buf) {
+        return engine.compress(buf);
     }
 
     public static byte[] decompress(byte[] buf) throws IOException {
-        ByteArrayInputStream in = new ByteArrayInputStream(buf);
-        try (GZIPInputStream gzipIn = new GZIPInputStream(in)) {
-            return ByteStreams.toByteArray(gzipIn);
-        }
+        return engine.decompress(ByteBuffer.wrap(buf));
+    }
+
+    public static byte[] decompress(ByteBuffer buf) throws IOException {
+        return engine.decompress(buf);
     }
 
 }
@@ -0,0 +1,386 @@
+package ru.spark.wastebin.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compresses and decompresses data in the gzip format, using pooled
+ * {@link Deflater}s and {@link Inflater}s.
+ *
+ * <p>Payloads larger than the parallel threshold are split into blocks which are
+ * compressed concurrently, each as its own gzip member. The members are concatenated
+ * into a single multi-member gzip stream, which decodes to the original data.</p>
+ */
+public class CompressionEngine implements AutoCloseable {
+
+    /**
+     * Logger instance
+     */
+    private static final Logger LOGGER = LogManager.getLogger(CompressionEngine.class);
+
+    /**
+     * Gzip member header - deflate, no flags, no mtime, unknown os
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /**
+     * Gzip header flags
+     */
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    /**
+     * The size of the chunks data is fed through the (de)compressor in
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of idle deflaters and inflaters to keep
+     */
+    private static final int POOL_SIZE = 64;
+
+    // the deflate compression level
+    private final int level;
+
+    // the size above which payloads are compressed in parallel blocks
+    private final int parallelThreshold;
+
+    // the size of each block when compressing in parallel
+    private final int blockSize;
+
+    // the executor used to compress blocks in parallel, or null
+    private final ExecutorService executor;
+
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final LongAdder compressCount = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder compressBytesIn = new LongAdder();
+    private final LongAdder compressBytesOut = new LongAdder();
+    private final LongAdder decompressCount = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    public CompressionEngine(int level, int parallelThreshold, int blockSize, ExecutorService executor) {
+        this.level = level;
+        this.parallelThreshold = parallelThreshold;
+        this.blockSize = blockSize;
+        this.executor = executor;
+    }
+
+    public long getCompressCount() {
+        return this.compressCount.sum();
+    }
+
+    public long getCompressNanos() {
+        return this.compressNanos.sum();
+    }
+
+    public long getCompressBytesIn() {
+        return this.compressBytesIn.sum();
+    }
+
+    public long getCompressBytesOut() {
+        return this.compressBytesOut.sum();
+    }
+
+    public long getDecompressCount() {
+        return this.decompressCount.sum();
+    }
+
+    public long getDecompressNanos() {
+        return this.decompressNanos.sum();
+    }
+
+    /**
+     * Compresses the given data into a gzip stream.
+     *
+     * @param buf the data to compress
+     * @return a buffer containing the compressed data
+     */
+    public ByteBuffer compress(byte[] buf) {
+        long start = System.nanoTime();
+
+        ByteBuffer result;
+        if (this.executor != null && this.parallelThreshold > 0 && buf.length > this.parallelThreshold) {
+            result = compressParallel(buf);
+        } else {
+            Output out = new Output(buf.length / 2 + 64);
+            compressMember(buf, 0, buf.length, out);
+            result = out.toCompactByteBuffer();
+        }
+
+        long nanos = System.nanoTime() - start;
+        this.compressCount.increment();
+        this.compressNanos.add(nanos);
+        this.compressBytesIn.add(buf.length);
+        this.compressBytesOut.add(result.remaining());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[COMPRESS] " + buf.length + " -> " + result.remaining() + " bytes (ratio " +
+                    String.format("%.2f", (double) buf.length / Math.max(1, result.remaining())) + ") in " +
+                    TimeUnit.NANOSECONDS.toMicros(nanos) + "us");
+        }
+        return result;
+    }
+
+    private ByteBuffer compressParallel(byte[] buf) {
+        List<Future<Output>> futures = new ArrayList<>();
+        for (int off = this.blockSize; off < buf.length; off += this.blockSize) {
+            int blockOff = off;
+            int blockLen = Math.min(this.blockSize, buf.length - off);
+            futures.add(this.executor.submit(() -> {
+                Output out = new Output(blockLen / 2 + 64);
+                compressMember(buf, blockOff, blockLen, out);
+                return out;
+            }));
+        }
+
+        // compress the first block on this thread whilst waiting for the others
+        Output out = new Output(buf.length / 2 + 64);
+        compressMember(buf, 0, Math.min(this.blockSize, buf.length), out);
+
+        try {
+            for (Future<Output> future : futures) {
+                Output block = future.get();
+                out.write(block.buf, 0, block.count);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return out.toCompactByteBuffer();
+    }
+
+    private void compressMember(byte[] buf, int off, int len, Output out) {
+        out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+
+        Deflater deflater = this.deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(this.level, true);
+        }
+        try {
+            deflater.setInput(buf, off, len);
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensureCapacity(1);
+                out.count += deflater.deflate(out.buf, out.count, out.buf.length - out.count);
+            }
+        } finally {
+            deflater.reset();
+            if (!this.deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buf, off, len);
+        out.writeIntLE((int) crc.getValue());
+        out.writeIntLE(len);
+    }
+
+    /**
+     * Decompresses the given gzip stream, which may consist of multiple members.
+     *
+     * @param in the compressed data
+     * @return the decompressed data
+     * @throws IOException if the data is not a valid gzip stream
+     */
+    public byte[] decompress(ByteBuffer in) throws IOException {
+        long start = System.nanoTime();
+
+        Output out = new Output(Math.max(in.remaining() * 3, 256));
+        byte[] chunk = in.hasArray() ? null : new byte[Math.min(CHUNK_SIZE, in.remaining())];
+
+        Inflater inflater = this.inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            boolean first = true;
+            while (in.hasRemaining()) {
+                if (!readHeader(in, first)) {
+                    break;
+                }
+                first = false;
+
+                int memberStart = out.count;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (!in.hasRemaining()) {
+                            throw new EOFException("Unexpected end of gzip stream");
+                        }
+                        int n = Math.min(CHUNK_SIZE, in.remaining());
+                        if (chunk == null) {
+                            inflater.setInput(in.array(), in.arrayOffset() + in.position(), n);
+                            in.position(in.position() + n);
+                        } else {
+                            in.get(chunk, 0, n);
+                            inflater.setInput(chunk, 0, n);
+                        }
+                    }
+
+                    out.ensureCapacity(1);
+                    int n = inflater.inflate(out.buf, out.count, out.buf.length - out.count);
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("Unexpected preset dictionary");
+                    }
+                    out.count += n;
+                }
+
+                // give back any input the inflater didn't use
+                in.position(in.position() - inflater.getRemaining());
+                inflater.reset();
+
+                if (in.remaining() < 8) {
+                    throw new EOFException("Unexpected end of gzip stream");
+                }
+                CRC32 crc = new CRC32();
+                crc.update(out.buf, memberStart, out.count - memberStart);
+                int expectedCrc = Integer.reverseBytes(in.getInt());
+                int expectedSize = Integer.reverseBytes(in.getInt());
+                if (expectedCrc != (int) crc.getValue() || expectedSize != out.count - memberStart) {
+                    throw new ZipException("Corrupt gzip trailer");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!this.inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+
+        this.decompressCount.increment();
+        this.decompressNanos.add(System.nanoTime() - start);
+        return out.toByteArray();
+    }
+
+    // returns false if there is trailing data after the first member which isn't another member
+    private static boolean readHeader(ByteBuffer in, boolean first) throws IOException {
+        if (in.remaining() < 10 || in.get(in.position()) != 0x1f || in.get(in.position() + 1) != (byte) 0x8b) {
+            if (first) {
+                throw new ZipException("Not in gzip format");
+            }
+            return false;
+        }
+
+        in.getShort(); // magic
+        if (in.get() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = in.get() & 0xff;
+        in.position(in.position() + 6); // mtime, xfl, os
+
+        try {
+            if ((flags & FEXTRA) != 0) {
+                int extraLen = (in.get() & 0xff) | ((in.get() & 0xff) << 8);
+                in.position(in.position() + extraLen);
+            }
+            if ((flags & FNAME) != 0) {
+                skipString(in);
+            }
+            if ((flags & FCOMMENT) != 0) {
+                skipString(in);
+            }
+            if ((flags & FHCRC) != 0) {
+                in.getShort();
+            }
+        } catch (RuntimeException e) {
+            throw new EOFException("Unexpected end of gzip header");
+        }
+        return true;
+    }
+
+    private static void skipString(ByteBuffer in) {
+        while (in.get() != 0) {
+            // skip
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+        Deflater deflater;
+        while ((deflater = this.deflaters.poll()) != null) {
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = this.inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A growable output buffer which can be written to directly
+     */
+    private static final class Output {
+        private byte[] buf;
+        private int count;
+
+        Output(int size) {
+            this.buf = new byte[size];
+        }
+
+        void ensureCapacity(int extra) {
+            if (this.buf.length - this.count < extra) {
+                byte[] newBuf = new byte[Math.max(this.buf.length * 2, this.count + extra)];
+                System.arraycopy(this.buf, 0, newBuf, 0, this.count);
+                this.buf = newBuf;
+            }
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, this.buf, this.count, len);
+            this.count += len;
+        }
+
+        void writeIntLE(int v) {
+            ensureCapacity(4);
+            this.buf[this.count++] = (byte) v;
+            this.buf[this.count++] = (byte) (v >>> 8);
+            this.buf[this.count++] = (byte) (v >>> 16);
+            this.buf[this.count++] = (byte) (v >>> 24);
+        }
+
+        // avoids holding on to a mostly empty array, without copying when it's mostly full
+        ByteBuffer toCompactByteBuffer() {
+            if (this.count < this.buf.length / 2) {
+                return ByteBuffer.wrap(toByteArray());
+            }
+            return ByteBuffer.wrap(this.buf, 0, this.count);
+        }
+
+        byte[] toByteArray() {
+            if (this.count == this.buf.length) {
+                return this.buf;
+            }
+            byte[] bytes = new byte[this.count];
+            System.arraycopy(this.buf, 0, bytes, 0, this.count);
+            return bytes;
+        }
+    }
+
+}
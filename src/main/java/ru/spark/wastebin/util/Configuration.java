@@ -40,6 +40,14 @@ public class Configuration {
         return e.getAsString();
     }
 
+    public boolean getBoolean(String path, boolean def) {
+        JsonElement e = this.jsonObject.get(path);
+        if (e == null || !e.isJsonPrimitive() || !e.getAsJsonPrimitive().isBoolean()) {
+            return def;
+        }
+        return e.getAsBoolean();
+    }
+
     public int getInt(String path, int def) {
         JsonElement e = this.jsonObject.get(path);
         if (e == null || !e.isJsonPrimitive() || !e.getAsJsonPrimitive().isNumber()) {
@@ -56,6 +64,27 @@ public class Configuration {
         return e.getAsLong();
     }
 
+    public double getDouble(String path, double def) {
+        JsonElement e = this.jsonObject.get(path);
+        if (e == null || !e.isJsonPrimitive() || !e.getAsJsonPrimitive().isNumber()) {
+            return def;
+        }
+        return e.getAsDouble();
+    }
+
+    public Map<String, String> getStringMap(String path) {
+        JsonElement e = this.jsonObject.get(path);
+        if (e == null || !e.isJsonObject()) {
+            return ImmutableMap.of();
+        }
+
+        JsonObject map = e.getAsJsonObject();
+        return map.entrySet().stream().collect(ImmutableMap.toImmutableMap(
+                Map.Entry::getKey,
+                ent -> ent.getValue().getAsString()
+        ));
+    }
+
     public Map<String, Long> getLongMap(String path) {
         JsonElement e = this.jsonObject.get(path);
         if (e == null || !e.isJsonObject()) {
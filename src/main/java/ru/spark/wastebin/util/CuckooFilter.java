@@ -0,0 +1,244 @@
+package ru.spark.wastebin.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A cuckoo filter - a compact set membership test which, unlike a Bloom filter, supports
+ * removal.
+ *
+ * <p>Each item is reduced to a short fingerprint stored in one of two candidate buckets.
+ * Lookups never give false negatives for items which were added (and not removed), and
+ * give false positives at roughly the rate the filter was sized for.</p>
+ *
+ * <p>Items are passed in as 64-bit hashes. Items must only be removed if they were
+ * previously added. Not thread-safe.</p>
+ */
+public final class CuckooFilter {
+
+    /**
+     * Number of fingerprints in each bucket
+     */
+    private static final int BUCKET_SIZE = 4;
+
+    /**
+     * The proportion of slots which can be filled before inserts start to fail
+     */
+    private static final double LOAD_FACTOR = 0.95;
+
+    /**
+     * How many fingerprints to relocate when looking for space, before giving up
+     */
+    private static final int MAX_KICKS = 500;
+
+    private final int fingerprintBits;
+    private final long fingerprintMask;
+    private final int bucketMask;
+
+    // fingerprints packed end to end, BUCKET_SIZE per bucket - zero marks an empty slot
+    private final long[] table;
+
+    /**
+     * A fingerprint which couldn't be placed by the last insert, and one of its buckets.
+     * Once this is in use, the filter is full.
+     */
+    private long victimFingerprint;
+    private int victimBucket;
+
+    private int size;
+
+    /**
+     * Creates a filter.
+     *
+     * @param capacity the number of items the filter should hold
+     * @param falsePositiveRate the target false positive rate
+     */
+    public CuckooFilter(long capacity, double falsePositiveRate) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        Preconditions.checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be between 0 and 1");
+
+        // a lookup compares against 2 buckets' worth of fingerprints
+        this.fingerprintBits = (int) Math.min(32, Math.max(4, Math.ceil(log2(2 * BUCKET_SIZE / falsePositiveRate))));
+        this.fingerprintMask = (1L << this.fingerprintBits) - 1;
+
+        long buckets = Long.highestOneBit(Math.max(1, (long) Math.ceil(capacity / (BUCKET_SIZE * LOAD_FACTOR))) * 2 - 1);
+        Preconditions.checkArgument(buckets <= 1 << 30, "capacity too large: " + capacity);
+        this.bucketMask = (int) buckets - 1;
+        this.table = new long[(int) ((buckets * BUCKET_SIZE * this.fingerprintBits + 63) / 64)];
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets the number of items the filter can hold before inserts start to fail.
+     *
+     * @return the capacity
+     */
+    public long getCapacity() {
+        return (long) ((this.bucketMask + 1L) * BUCKET_SIZE * LOAD_FACTOR);
+    }
+
+    public long getMemoryBytes() {
+        return this.table.length * 8L;
+    }
+
+    private long fingerprint(long hash) {
+        long fingerprint = hash & this.fingerprintMask;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private int index(long hash) {
+        return (int) (hash >>> 32) & this.bucketMask;
+    }
+
+    // the alternate bucket depends only on the fingerprint, so it can be found without the item
+    private int altIndex(int index, long fingerprint) {
+        return (index ^ (int) (fingerprint * 0x5bd1e995L)) & this.bucketMask;
+    }
+
+    private long get(int bucket, int slot) {
+        long bit = ((long) bucket * BUCKET_SIZE + slot) * this.fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) (bit & 63);
+        long value = this.table[word] >>> offset;
+        if (offset + this.fingerprintBits > 64) {
+            value |= this.table[word + 1] << (64 - offset);
+        }
+        return value & this.fingerprintMask;
+    }
+
+    private void set(int bucket, int slot, long fingerprint) {
+        long bit = ((long) bucket * BUCKET_SIZE + slot) * this.fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int offset = (int) (bit & 63);
+        this.table[word] = (this.table[word] & ~(this.fingerprintMask << offset)) | (fingerprint << offset);
+        if (offset + this.fingerprintBits > 64) {
+            int shift = 64 - offset;
+            this.table[word + 1] = (this.table[word + 1] & ~(this.fingerprintMask >>> shift)) | (fingerprint >>> shift);
+        }
+    }
+
+    private boolean tryInsert(int bucket, long fingerprint) {
+        for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+            if (get(bucket, slot) == 0) {
+                set(bucket, slot, fingerprint);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean bucketContains(int bucket, long fingerprint) {
+        for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+            if (get(bucket, slot) == fingerprint) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean bucketRemove(int bucket, long fingerprint) {
+        for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+            if (get(bucket, slot) == fingerprint) {
+                set(bucket, slot, 0);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds an item to the filter.
+     *
+     * @param hash the item's hash
+     * @return true if the item was added, or false if the filter is full, in which case
+     *         the filter is unchanged
+     */
+    public boolean add(long hash) {
+        if (this.victimFingerprint != 0) {
+            return false;
+        }
+
+        long fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        int i2 = altIndex(i1, fingerprint);
+        this.size++;
+        if (tryInsert(i1, fingerprint) || tryInsert(i2, fingerprint)) {
+            return true;
+        }
+
+        // evict fingerprints to their alternate buckets until one finds space
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int bucket = random.nextBoolean() ? i1 : i2;
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int slot = random.nextInt(BUCKET_SIZE);
+            long evicted = get(bucket, slot);
+            set(bucket, slot, fingerprint);
+            fingerprint = evicted;
+            bucket = altIndex(bucket, fingerprint);
+            if (tryInsert(bucket, fingerprint)) {
+                return true;
+            }
+        }
+
+        // the item is in the filter, but the last fingerprint evicted has nowhere to go
+        this.victimFingerprint = fingerprint;
+        this.victimBucket = bucket;
+        return true;
+    }
+
+    /**
+     * Gets if the item might be in the filter.
+     *
+     * @param hash the item's hash
+     * @return false if the item is definitely not in the filter
+     */
+    public boolean mightContain(long hash) {
+        long fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        int i2 = altIndex(i1, fingerprint);
+        if (bucketContains(i1, fingerprint) || bucketContains(i2, fingerprint)) {
+            return true;
+        }
+        return this.victimFingerprint == fingerprint && (this.victimBucket == i1 || this.victimBucket == i2);
+    }
+
+    /**
+     * Removes an item which was previously added to the filter.
+     *
+     * @param hash the item's hash
+     * @return true if a matching fingerprint was removed
+     */
+    public boolean remove(long hash) {
+        long fingerprint = fingerprint(hash);
+        int i1 = index(hash);
+        int i2 = altIndex(i1, fingerprint);
+        boolean removed = bucketRemove(i1, fingerprint) || bucketRemove(i2, fingerprint);
+        if (!removed && this.victimFingerprint == fingerprint && (this.victimBucket == i1 || this.victimBucket == i2)) {
+            this.victimFingerprint = 0;
+            removed = true;
+        }
+        if (!removed) {
+            return false;
+        }
+        this.size--;
+
+        // there may be space for the victim now
+        if (this.victimFingerprint != 0) {
+            long victim = this.victimFingerprint;
+            int bucket = this.victimBucket;
+            if (tryInsert(bucket, victim) || tryInsert(altIndex(bucket, victim), victim)) {
+                this.victimFingerprint = 0;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,104 @@
+package ru.spark.wastebin.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-bucket latency histogram, cheap enough to record on every request.
+ *
+ * <p>Buckets are non-cumulative {@link LongAdder}s, so concurrent recorders don't
+ * contend. They are accumulated when the histogram is written out.</p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds of each bucket, in nanoseconds
+     */
+    private static final long[] BOUNDS = {
+            TimeUnit.MICROSECONDS.toNanos(50),
+            TimeUnit.MICROSECONDS.toNanos(100),
+            TimeUnit.MICROSECONDS.toNanos(250),
+            TimeUnit.MICROSECONDS.toNanos(500),
+            TimeUnit.MILLISECONDS.toNanos(1),
+            TimeUnit.MICROSECONDS.toNanos(2500),
+            TimeUnit.MILLISECONDS.toNanos(5),
+            TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(25),
+            TimeUnit.MILLISECONDS.toNanos(50),
+            TimeUnit.MILLISECONDS.toNanos(100),
+            TimeUnit.MILLISECONDS.toNanos(250),
+            TimeUnit.MILLISECONDS.toNanos(500),
+            TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(2500),
+            TimeUnit.SECONDS.toNanos(5),
+            TimeUnit.SECONDS.toNanos(10)
+    };
+
+    // one more bucket than bounds, for everything above the largest bound
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()} value.
+     *
+     * @param startNanos the start time
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+            i++;
+        }
+        this.buckets[i].increment();
+        this.sumNanos.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return this.sumNanos.sum();
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format.
+     *
+     * @param sb the builder to append to
+     * @param name the metric name
+     * @param labels extra labels, e.g. {@code handler="get"}, or an empty string
+     */
+    public void writePrometheus(StringBuilder sb, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            cumulative += this.buckets[i].sum();
+            sb.append(name).append("_bucket{").append(prefix).append("le=\"").append(BOUNDS[i] / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += this.buckets[BOUNDS.length].sum();
+        sb.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        sb.append(name).append("_sum").append(suffix).append(getSumNanos() / 1e9).append('\n');
+        sb.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+    }
+
+}
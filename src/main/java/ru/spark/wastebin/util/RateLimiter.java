@@ -1,31 +1,368 @@
 package ru.spark.wastebin.util;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
-
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * A token bucket rate limiter, keyed by client ip address.
+ *
+ * <p>Buckets are held in a fixed size open-addressing table of primitive longs, so memory
+ * use is bounded no matter how many distinct addresses are seen. Addresses are parsed
+ * into their 128-bit form and reduced to a 64-bit fingerprint without allocating. Each
+ * bucket's state is a single long, refilled and consumed with compare-and-set.</p>
+ */
 public class RateLimiter {
     /**
-     * Rate limiter cache - allow x requests every x minutes
+     * The default maximum number of buckets to track
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1 << 16;
+
+    /**
+     * Number of slots to probe before evicting an existing bucket
+     */
+    private static final int PROBE_LIMIT = 8;
+
+    /**
+     * Tokens are stored in thousandths, so partial refills aren't lost
+     */
+    private static final long TOKEN_SCALE = 1000;
+
+    /**
+     * Number of low bits of the bucket state holding the token count
+     */
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    /**
+     * Per-thread scratch space for parsed IPv6 addresses
+     */
+    private static final ThreadLocal<long[]> PARSED = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * Interleaved table of [fingerprint, state] pairs - a fingerprint of 0 marks an empty slot
      */
-    private final LoadingCache<String, AtomicInteger> rateLimiter;
+    private final AtomicLongArray table;
+
     /**
-     * The number of requests allowed in each period
+     * Mask used to map a fingerprint to a slot
      */
-    private final int actionsPerCycle;
+    private final int slotMask;
+
+    /**
+     * The number of requests allowed in each period, in thousandths
+     */
+    private final long capacity;
+
+    /**
+     * The length of the period in milliseconds
+     */
+    private final long periodMillis;
+
+    /**
+     * Time origin for bucket timestamps
+     */
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * The number of actions rejected
+     */
+    private final LongAdder rejectedCount = new LongAdder();
 
     public RateLimiter(int periodMins, int actionsPerCycle) {
-        this.rateLimiter = Caffeine.newBuilder()
-                .expireAfterWrite(periodMins, TimeUnit.MINUTES)
-                .build(key -> new AtomicInteger(0));
-        this.actionsPerCycle = actionsPerCycle;
+        this(periodMins, actionsPerCycle, DEFAULT_MAX_ENTRIES);
     }
 
+    public RateLimiter(int periodMins, int actionsPerCycle, int maxEntries) {
+        if (actionsPerCycle * TOKEN_SCALE > TOKEN_MASK) {
+            throw new IllegalArgumentException("actionsPerCycle too large: " + actionsPerCycle);
+        }
+
+        int slots = Integer.highestOneBit(Math.max(PROBE_LIMIT, maxEntries - 1)) << 1;
+        this.table = new AtomicLongArray(slots * 2);
+        this.slotMask = slots - 1;
+        this.capacity = actionsPerCycle * TOKEN_SCALE;
+        this.periodMillis = Math.max(1, TimeUnit.MINUTES.toMillis(periodMins));
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    /**
+     * Records an action by the given ip address.
+     *
+     * @param ipAddress the ip address
+     * @return true if the action should be rejected
+     */
     public boolean check(String ipAddress) {
-        //noinspection ConstantConditions
-        return this.rateLimiter.get(ipAddress).incrementAndGet() > this.actionsPerCycle;
+        long fingerprint = fingerprint(ipAddress);
+        long now = System.currentTimeMillis() - this.epoch;
+        int slot = findSlot(fingerprint, now);
+
+        int stateIndex = slot * 2 + 1;
+        while (true) {
+            long state = this.table.get(stateIndex);
+            long tokens = refill(state, now);
+            boolean allowed = tokens >= TOKEN_SCALE;
+            if (allowed) {
+                tokens -= TOKEN_SCALE;
+            }
+            if (this.table.compareAndSet(stateIndex, state, pack(now, tokens))) {
+                if (!allowed) {
+                    this.rejectedCount.increment();
+                }
+                return !allowed;
+            }
+        }
+    }
+
+    private long refill(long state, long now) {
+        long lastRefill = state >>> TOKEN_BITS;
+        long tokens = state & TOKEN_MASK;
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) {
+            return tokens;
+        }
+        if (elapsed >= this.periodMillis) {
+            return this.capacity;
+        }
+        return Math.min(this.capacity, tokens + elapsed * this.capacity / this.periodMillis);
+    }
+
+    private static long pack(long now, long tokens) {
+        return (now << TOKEN_BITS) | tokens;
+    }
+
+    private int findSlot(long fingerprint, long now) {
+        int start = (int) (fingerprint ^ (fingerprint >>> 32)) & this.slotMask;
+
+        int oldestSlot = start;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_LIMIT; i++) {
+            int slot = (start + i) & this.slotMask;
+            long existing = this.table.get(slot * 2);
+            if (existing == fingerprint) {
+                return slot;
+            }
+            if (existing == 0) {
+                if (claim(slot, 0, fingerprint, now)) {
+                    return slot;
+                }
+                if (this.table.get(slot * 2) == fingerprint) {
+                    return slot;
+                }
+                continue;
+            }
+
+            long lastRefill = this.table.get(slot * 2 + 1) >>> TOKEN_BITS;
+            if (lastRefill < oldestTime) {
+                oldestTime = lastRefill;
+                oldestSlot = slot;
+            }
+        }
+
+        // the neighbourhood is full - take over the least recently used bucket
+        long existing = this.table.get(oldestSlot * 2);
+        claim(oldestSlot, existing, fingerprint, now);
+        return oldestSlot;
+    }
+
+    private boolean claim(int slot, long expected, long fingerprint, long now) {
+        if (this.table.compareAndSet(slot * 2, expected, fingerprint)) {
+            this.table.set(slot * 2 + 1, pack(now, this.capacity));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reduces an ip address to a non-zero 64-bit fingerprint.
+     *
+     * <p>IPv4 and IPv6 addresses are parsed to their 128-bit form (with IPv4 addresses
+     * mapped into IPv6), so different spellings of the same address share a bucket.
+     * Anything else is hashed as a string.</p>
+     *
+     * @param ipAddress the ip address
+     * @return the fingerprint
+     */
+    static long fingerprint(String ipAddress) {
+        long hi;
+        long lo;
+        long ipv4 = parseIpv4(ipAddress, 0, ipAddress.length());
+        if (ipv4 >= 0) {
+            hi = 0;
+            lo = 0xFFFF00000000L | ipv4;
+        } else {
+            long[] parsed = PARSED.get();
+            if (parseIpv6(ipAddress, parsed)) {
+                hi = parsed[0];
+                lo = parsed[1];
+            } else {
+                hi = 0x9E3779B97F4A7C15L;
+                lo = 0;
+                for (int i = 0; i < ipAddress.length(); i++) {
+                    lo = lo * 31 + ipAddress.charAt(i);
+                    hi = mix(hi ^ lo);
+                }
+            }
+        }
+
+        long fingerprint = mix(hi ^ mix(lo));
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    // the murmur3 64-bit finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // returns the address as an unsigned int, or -1 if invalid
+    private static long parseIpv4(String s, int start, int end) {
+        long result = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && value >= 0 && octets < 3) {
+                result = (result << 8) | value;
+                octets++;
+                value = -1;
+            } else {
+                return -1;
+            }
+        }
+        if (value < 0 || octets != 3) {
+            return -1;
+        }
+        return (result << 8) | value;
+    }
+
+    private static boolean parseIpv6(String s, long[] out) {
+        int end = s.indexOf('%');
+        if (end < 0) {
+            end = s.length();
+        }
+        int start = 0;
+        if (end - start >= 2 && s.charAt(start) == '[' && s.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+
+        // groups before "::" accumulate into head, groups after it into tail
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int headCount = 0, tailCount = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (end - i >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        }
+
+        while (i < end) {
+            int groupEnd = i;
+            int value = 0;
+            while (groupEnd < end && s.charAt(groupEnd) != ':') {
+                char c = s.charAt(groupEnd);
+                int digit = Character.digit(c, 16);
+                if (c == '.') {
+                    digit = -2;
+                }
+                if (digit == -1 || groupEnd - i >= 4 && digit != -2) {
+                    return false;
+                }
+                if (digit == -2) {
+                    // embedded IPv4 address in the last two groups
+                    long ipv4 = parseIpv4(s, i, end);
+                    if (ipv4 < 0) {
+                        return false;
+                    }
+                    for (int shift = 16; shift >= 0; shift -= 16) {
+                        int group = (int) ((ipv4 >>> shift) & 0xFFFF);
+                        if (compressed) {
+                            tailHi = (tailHi << 16) | (tailLo >>> 48);
+                            tailLo = (tailLo << 16) | group;
+                            tailCount++;
+                        } else {
+                            headHi = (headHi << 16) | (headLo >>> 48);
+                            headLo = (headLo << 16) | group;
+                            headCount++;
+                        }
+                    }
+                    groupEnd = end;
+                    value = -1;
+                    break;
+                }
+                value = (value << 4) | digit;
+                groupEnd++;
+            }
+
+            if (value >= 0) {
+                if (groupEnd == i) {
+                    return false;
+                }
+                if (compressed) {
+                    tailHi = (tailHi << 16) | (tailLo >>> 48);
+                    tailLo = (tailLo << 16) | value;
+                    tailCount++;
+                } else {
+                    headHi = (headHi << 16) | (headLo >>> 48);
+                    headLo = (headLo << 16) | value;
+                    headCount++;
+                }
+            }
+
+            i = groupEnd;
+            if (i < end) {
+                // skip the separator
+                i++;
+                if (i < end && s.charAt(i) == ':') {
+                    if (compressed) {
+                        return false;
+                    }
+                    compressed = true;
+                    i++;
+                } else if (i == end) {
+                    return false;
+                }
+            }
+        }
+
+        int groups = headCount + tailCount;
+        if (groups > 8 || (!compressed && groups != 8) || (compressed && groups == 8)) {
+            return false;
+        }
+
+        // shift the head groups into place above the tail
+        int shift = 16 * (8 - headCount);
+        long hi;
+        long lo;
+        if (shift >= 128) {
+            hi = 0;
+            lo = 0;
+        } else if (shift >= 64) {
+            hi = headLo << (shift - 64);
+            lo = 0;
+        } else if (shift == 0) {
+            hi = headHi;
+            lo = headLo;
+        } else {
+            hi = (headHi << shift) | (headLo >>> (64 - shift));
+            lo = headLo << shift;
+        }
+        out[0] = hi | tailHi;
+        out[1] = lo | tailLo;
+        return true;
     }
 }
@@ -2,6 +2,7 @@ package ru.spark.wastebin.util;
 
 import com.google.common.base.Preconditions;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.regex.Pattern;
 
@@ -14,21 +15,97 @@ public class TokenGenerator {
     /**
      * Characters to include in a token
      */
-    private static final String CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    private static final char[] CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    /**
+     * Per-thread entropy, so generating threads don't contend on a shared random
+     */
+    private static final ThreadLocal<Source> SOURCE = ThreadLocal.withInitial(Source::new);
 
     private final int length;
-    private final SecureRandom random = new SecureRandom();
+
+    // the random secrets are drawn from directly, or null to use the per-thread source
+    private final SecureRandom secureRandom;
 
     public TokenGenerator(int length) {
+        this(length, false);
+    }
+
+    /**
+     * Creates a new token generator.
+     *
+     * @param length the length of the tokens
+     * @param secret if the tokens are secrets, like modification keys, which are drawn from
+     *               the platform default {@link SecureRandom} rather than the faster per-thread source
+     */
+    public TokenGenerator(int length, boolean secret) {
         Preconditions.checkArgument(length > 1);
         this.length = length;
+        this.secureRandom = secret ? new SecureRandom() : null;
     }
 
     public String generate() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < this.length; i++) {
-            sb.append(CHARACTERS.charAt(this.random.nextInt(CHARACTERS.length())));
+        if (this.secureRandom == null) {
+            return generate(this.length);
+        }
+
+        char[] chars = new char[this.length];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = CHARACTERS[this.secureRandom.nextInt(CHARACTERS.length)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Generates a token of the given length, from the per-thread source - which is fast,
+     * but shouldn't be used for secrets.
+     *
+     * @param length the length
+     * @return the token
+     */
+    public static String generate(int length) {
+        return SOURCE.get().generate(length);
+    }
+
+    private static final class Source {
+        // the platform default random shares one lock between every instance
+        private final SecureRandom random = newRandom();
+
+        // random bytes are drawn in blocks, and characters built in place, so the only allocation is the token
+        private final byte[] buffer = new byte[256];
+        private int position = this.buffer.length;
+        private char[] chars = new char[32];
+
+        private static SecureRandom newRandom() {
+            try {
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+
+        String generate(int length) {
+            if (this.chars.length < length) {
+                this.chars = new char[length];
+            }
+            for (int i = 0; i < length; i++) {
+                this.chars[i] = CHARACTERS[nextIndex()];
+            }
+            return new String(this.chars, 0, length);
+        }
+
+        // a uniformly distributed index into CHARACTERS - 6 random bits, redrawn if out of range
+        private int nextIndex() {
+            while (true) {
+                if (this.position == this.buffer.length) {
+                    this.random.nextBytes(this.buffer);
+                    this.position = 0;
+                }
+                int index = this.buffer[this.position++] & 0x3f;
+                if (index < CHARACTERS.length) {
+                    return index;
+                }
+            }
         }
-        return sb.toString();
     }
 }
@@ -0,0 +1,37 @@
+package ru.spark.wastebin.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors which run each task on a new virtual thread, on runtimes which have them.
+ *
+ * <p>Virtual threads are only final from Java 21, so they're looked up reflectively, and the
+ * same build can still run on older runtimes with a platform thread pool.</p>
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for each task.
+     *
+     * @param namePrefix the prefix of the thread names, followed by a counter
+     * @return the executor, or null if the runtime doesn't support virtual threads
+     */
+    public static ExecutorService newExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            // not available, or still a preview feature which hasn't been enabled
+            return null;
+        }
+    }
+
+}